@@ -75,6 +75,36 @@ public class App {
         // REMOVE BEFORE SUBMISSION
         Statistics stats = new Statistics();
 
+        // --png also writes each decompressed image to Decompressed/; metrics are
+        // computed in memory either way
+        List<String> options = new ArrayList<String>(Arrays.asList(args));
+        boolean writePng = options.remove("--png");
+
+        // --preset fast|balanced|smallest|legacy picks the CompressionOptions, legacy by default
+        CompressionOptions compressionOptions = CompressionOptions.LEGACY;
+        String preset = takeValue(options, "--preset", "a name: fast, balanced, smallest or legacy");
+        if (preset != null) {
+            compressionOptions = CompressionOptions.forName(preset);
+        }
+
+        // --psnr dB or --bytes n compress each image to that target instead, see RateControl
+        String targetPsnr = takeValue(options, "--psnr", "a target in dB");
+        if (targetPsnr != null) {
+            compressionOptions = compressionOptions.withTargetPsnr(Double.parseDouble(targetPsnr));
+        }
+        String maxBytes = takeValue(options, "--bytes", "a byte budget");
+        if (maxBytes != null) {
+            compressionOptions = compressionOptions.withMaxBytes(Long.parseLong(maxBytes));
+        }
+
+        // --batch [decode,compress,verify,metrics workers] runs every file through BatchPipeline
+        if (!options.isEmpty() && options.get(0).equals("--batch")) {
+            runBatch(Utility, compressionOptions, files, options.size() > 1 ? options.get(1) : null,
+                    writePng ? "Decompressed/" : null, stats);
+            stats.printAverages();
+            return;
+        }
+
         if (files != null) {
             for (File file : files) {
                 if (file.isFile()) {
@@ -86,17 +116,7 @@ public class App {
 
                     // Converting the image to pixels
 
-                    int[][][] pixelData = ImagetoPixelConverter.getPixelData();
-                    int width = ImagetoPixelConverter.getWidth();
-                    int height = ImagetoPixelConverter.getHeight();
-
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            int red = pixelData[x][y][0];
-                            int green = pixelData[x][y][1];
-                            int blue = pixelData[x][y][2];
-                        }
-                    }
+                    PixelBuffer pixelData = ImagetoPixelConverter.getPixelBuffer();
 
                     // Now you have the image data in 'pixelData' that will be taken in by Compress
 
@@ -108,7 +128,7 @@ public class App {
                     long compressStartTime = System.currentTimeMillis();
 
                     // call compress function
-                    Utility.Compress(pixelData, compressed_file_name);
+                    Utility.Compress(pixelData, compressed_file_name, compressionOptions);
 
                     // end timer for compress and record the total time passed
                     long compressEndTime = System.currentTimeMillis();
@@ -137,7 +157,7 @@ public class App {
                     long decompressStartTime = System.currentTimeMillis();
 
                     // call decompress function
-                    int[][][] newPixelData = Utility.Decompress(compressed_file_name);
+                    PixelBuffer newPixelData = Utility.decompressBuffer(compressed_file_name);
 
                     // end timer for decompress and record the total time passed
                     long decompressEndTime = System.currentTimeMillis();
@@ -146,24 +166,24 @@ public class App {
                             + " milliseconds");
 
                     // convert back to image for visualisation
-                    PixeltoImageConverter PixeltoImageConverter = new PixeltoImageConverter(newPixelData);
-                    PixeltoImageConverter.saveImage("Decompressed/" + imageName, "png");
+                    if (writePng) {
+                        PixeltoImageConverter PixeltoImageConverter = new PixeltoImageConverter(newPixelData);
+                        PixeltoImageConverter.saveImage("Decompressed/" + imageName, "png");
+                    }
 
-                    // Get the two bufferedimages for calculations
-                    BufferedImage originalimage = ImageIO.read(new File(ImageDirectory + imageName));
-                    BufferedImage decompressedimage = ImageIO.read(new File("Decompressed/" + imageName));
+                    // calculate MAE, MSE and PSNR in one pass, straight from the pixels
+                    // that were compressed and the ones that came back
+                    QualityMetrics metrics = QualityMetrics.compare(pixelData, newPixelData);
 
-                    // calculate MAE
-                    double MAE = MAECalculator.calculateMAE(originalimage, decompressedimage);
+                    double MAE = metrics.getMAE();
                     System.out.println("Mean Absolute Error of :" + imageName + " is " + MAE);
 
-                    // calculate MSE
-                    double MSE = MSECalculator.calculateMSE(originalimage, decompressedimage);
+                    double MSE = metrics.getMSE();
                     System.out.println("Mean Squared Error of :" + imageName + " is " + MSE);
 
-                    // calculate PSNR
-                    double PSNR = PSNRCalculator.calculatePSNR(originalimage, decompressedimage);
+                    double PSNR = metrics.getPSNR();
                     System.out.println("PSNR of :" + imageName + " is " + PSNR);
+                    System.out.println("Max channel error of :" + imageName + " is " + metrics.getMaxError());
 
                     // REMOVE BEFORE SUBMISSION
                     stats.addCompressTime(compressExecutionTime);
@@ -178,4 +198,65 @@ public class App {
         // REMOVE BEFORE SUBMISSION
         stats.printAverages();
     }
+
+    // Removes flag and the value after it from options and returns the value, or
+    // null when the flag is absent
+    private static String takeValue(List<String> options, String flag, String expected) {
+        int index = options.indexOf(flag);
+        if (index < 0) {
+            return null;
+        }
+        if (index + 1 >= options.size()) {
+            throw new IllegalArgumentException(flag + " needs " + expected);
+        }
+        String value = options.get(index + 1);
+        options.subList(index, index + 2).clear();
+        return value;
+    }
+
+    private static void runBatch(Utility utility, CompressionOptions compressionOptions, File[] files, String workers,
+            String pngDirectory, Statistics stats) throws IOException {
+        BatchPipeline pipeline;
+        if (workers == null) {
+            pipeline = new BatchPipeline(utility, compressionOptions, "Compressed/", pngDirectory);
+        } else {
+            String[] counts = workers.split(",");
+            if (counts.length != 4) {
+                throw new IllegalArgumentException("Expected four worker counts (decode,compress,verify,metrics): " + workers);
+            }
+            pipeline = new BatchPipeline(utility, compressionOptions, "Compressed/", pngDirectory, Integer.parseInt(counts[0].trim()),
+                    Integer.parseInt(counts[1].trim()), Integer.parseInt(counts[2].trim()), Integer.parseInt(counts[3].trim()));
+        }
+
+        List<File> images = new ArrayList<File>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    images.add(file);
+                }
+            }
+        }
+
+        List<BatchPipeline.Job> done;
+        try {
+            done = pipeline.run(images);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch interrupted");
+        }
+
+        for (BatchPipeline.Job job : done) {
+            long bytesSaved = job.source.length() - job.compressedFile.length();
+            System.out.println(job.getName() + ": compress " + job.compressMillis + " ms, decompress " + job.decompressMillis
+                    + " ms, saved " + bytesSaved + " bytes, " + job.metrics);
+
+            stats.addCompressTime(job.compressMillis);
+            stats.addDecompressTime(job.decompressMillis);
+            stats.addBytesSaved(bytesSaved);
+            stats.addMAE(job.metrics.getMAE());
+            stats.addMSE(job.metrics.getMSE());
+            stats.addPSNR(job.metrics.getPSNR());
+        }
+        pipeline.printReport();
+    }
 }
@@ -0,0 +1,249 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+// Runs decode -> compress -> verify -> metrics over many images at once. Each
+// stage has its own worker threads and passes images on through a bounded
+// queue, so a slow stage holds back the ones before it instead of letting
+// decoded images pile up in memory.
+public class BatchPipeline {
+    private static final int QUEUE_CAPACITY = 4;
+
+    // Marks the end of the input; each stage forwards it once all its workers are done
+    private static final Job END = new Job(null);
+
+    // One image on its way through the stages. Each stage fills in its fields
+    // before handing the job on; the queues publish them to the next stage.
+    static class Job {
+        final File source;
+        PixelBuffer pixels;
+        File compressedFile;
+        PixelBuffer decompressed;
+        long compressMillis;
+        long decompressMillis;
+        QualityMetrics metrics;
+
+        Job(File source) {
+            this.source = source;
+        }
+
+        String getName() {
+            return source.getName();
+        }
+    }
+
+    interface Step {
+        void process(Job job) throws Exception;
+    }
+
+    private final Utility utility;
+    private final CompressionOptions options;
+    private final String compressedDirectory;
+    private final String decompressedDirectory;
+    private final List<Stage> stages = new ArrayList<Stage>();
+
+    // Decompressed images are only written out as PNGs when decompressedDirectory
+    // is not null; the metrics never need them
+    public BatchPipeline(Utility utility, CompressionOptions options, String compressedDirectory, String decompressedDirectory) {
+        this(utility, options, compressedDirectory, decompressedDirectory, 2, Runtime.getRuntime().availableProcessors(), 2, 1);
+    }
+
+    public BatchPipeline(Utility utility, CompressionOptions options, String compressedDirectory, String decompressedDirectory,
+            int decodeWorkers, int compressWorkers, int verifyWorkers, int metricsWorkers) {
+        this.utility = utility;
+        this.options = options;
+        this.compressedDirectory = compressedDirectory;
+        this.decompressedDirectory = decompressedDirectory;
+
+        stages.add(new Stage("decode", decodeWorkers, this::decode));
+        stages.add(new Stage("compress", compressWorkers, this::compress));
+        stages.add(new Stage("verify", verifyWorkers, this::verify));
+        stages.add(new Stage("metrics", metricsWorkers, this::metrics));
+    }
+
+    // Just the given steps, in order, each with its own workers; for tests
+    BatchPipeline(int workers, Step... steps) {
+        this.utility = null;
+        this.options = null;
+        this.compressedDirectory = null;
+        this.decompressedDirectory = null;
+        for (int i = 0; i < steps.length; i++) {
+            stages.add(new Stage("step " + (i + 1), workers, steps[i]));
+        }
+    }
+
+    // Processes every file and returns the jobs that made it through all stages,
+    // in completion order. Failed images are reported and left out.
+    public List<Job> run(List<File> files) throws InterruptedException {
+        BlockingQueue<Job> input = new ArrayBlockingQueue<Job>(QUEUE_CAPACITY);
+        BlockingQueue<Job> queue = input;
+        for (Stage stage : stages) {
+            BlockingQueue<Job> output = new ArrayBlockingQueue<Job>(QUEUE_CAPACITY);
+            stage.start(queue, output);
+            queue = output;
+        }
+
+        // Fed from its own thread so the bounded input never blocks collection
+        Thread feeder = new Thread(() -> {
+            try {
+                for (File file : files) {
+                    input.put(new Job(file));
+                }
+                input.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "batch-feed");
+        feeder.start();
+
+        List<Job> done = new ArrayList<Job>();
+        for (Job job = queue.take(); job != END; job = queue.take()) {
+            done.add(job);
+        }
+        feeder.join();
+        return done;
+    }
+
+    public void printReport() {
+        System.out.println("--- PIPELINE STAGES ---");
+        for (Stage stage : stages) {
+            stage.printReport();
+        }
+        System.out.println("--- END OF PIPELINE STAGES ---");
+    }
+
+    private void decode(Job job) throws IOException {
+        BufferedImage original = ImageIO.read(job.source);
+        if (original == null) {
+            throw new IOException("Unsupported image format");
+        }
+        job.pixels = ImagetoPixelConverter.toPixelBuffer(original);
+    }
+
+    private void compress(Job job) throws IOException {
+        String name = job.getName();
+        int dot = name.lastIndexOf('.');
+        job.compressedFile = new File(compressedDirectory, (dot > 0 ? name.substring(0, dot) : name) + ".bin");
+
+        long start = System.currentTimeMillis();
+        Files.write(job.compressedFile.toPath(), utility.compress(job.pixels, options));
+        job.compressMillis = System.currentTimeMillis() - start;
+    }
+
+    private void verify(Job job) throws IOException {
+        long start = System.currentTimeMillis();
+        job.decompressed = utility.decompressBuffer(job.compressedFile.getPath());
+        job.decompressMillis = System.currentTimeMillis() - start;
+        if (job.decompressed == null) {
+            throw new IOException("Could not decompress " + job.compressedFile);
+        }
+
+        if (decompressedDirectory != null) {
+            new PixeltoImageConverter(job.decompressed).saveImage(new File(decompressedDirectory, job.getName()).getPath(), "png");
+        }
+    }
+
+    private void metrics(Job job) {
+        job.metrics = QualityMetrics.compare(job.pixels, job.decompressed);
+
+        // Nothing downstream needs the pixels
+        job.pixels = null;
+        job.decompressed = null;
+    }
+
+    // A named step run by its own worker threads, with timing for the report
+    private static class Stage {
+        private final String name;
+        private final int workers;
+        private final Step step;
+
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private volatile long startNanos;
+        private volatile long endNanos;
+
+        Stage(String name, int workers, Step step) {
+            if (workers <= 0) {
+                throw new IllegalArgumentException("Stage " + name + " needs at least one worker: " + workers);
+            }
+            this.name = name;
+            this.workers = workers;
+            this.step = step;
+        }
+
+        void start(BlockingQueue<Job> input, BlockingQueue<Job> output) {
+            startNanos = System.nanoTime();
+            running.set(workers);
+            for (int i = 1; i <= workers; i++) {
+                Thread worker = new Thread(() -> work(input, output), "batch-" + name + "-" + i);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+
+        private void work(BlockingQueue<Job> input, BlockingQueue<Job> output) {
+            try {
+                for (Job job = input.take(); job != END; job = input.take()) {
+                    long start = System.nanoTime();
+                    try {
+                        step.process(job);
+                    } catch (Throwable e) {
+                        // Errors too: an OutOfMemoryError on one huge image must not end the batch
+                        failed.incrementAndGet();
+                        System.err.println("Skipping " + job.getName() + " after " + name + " failed: " + e);
+                        continue;
+                    } finally {
+                        long elapsed = System.nanoTime() - start;
+                        busyNanos.addAndGet(elapsed);
+                        maxNanos.accumulateAndGet(elapsed, Math::max);
+                    }
+                    processed.incrementAndGet();
+                    output.put(job);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                passOnEnd(input, output);
+            }
+        }
+
+        // However a worker stops, the end still has to reach run(), or it waits forever
+        private void passOnEnd(BlockingQueue<Job> input, BlockingQueue<Job> output) {
+            boolean interrupted = Thread.interrupted();
+            try {
+                // Let the other workers see the end too; the last one out passes it on
+                input.put(END);
+                if (running.decrementAndGet() == 0) {
+                    endNanos = System.nanoTime();
+                    output.put(END);
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        void printReport() {
+            long count = processed.get();
+            double seconds = Math.max(1, endNanos - startNanos) / 1e9;
+            System.out.printf("%-10s %3d workers %7d done %5d failed %9.2f images/s %10.1f ms avg %10.1f ms max %5.0f%% busy%n",
+                name, workers, count, failed.get(), count / seconds,
+                count + failed.get() == 0 ? 0.0 : busyNanos.get() / 1e6 / (count + failed.get()),
+                maxNanos.get() / 1e6, 100.0 * busyNanos.get() / 1e9 / seconds / workers);
+        }
+    }
+}
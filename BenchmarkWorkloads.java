@@ -0,0 +1,260 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+// The work behind each JMH benchmark in src/jmh/java. JMH only generates
+// benchmarks for classes in a named package, and those cannot see the default
+// package, so the benchmarks look these up by name and run them as plain
+// LongSuppliers. Everything a workload needs is prepared before it is returned;
+// each call then does one operation and returns a value for JMH to consume.
+public class BenchmarkWorkloads {
+    // The stages timed on each synthetic image, named like the benchmark methods
+    public static LongSupplier pipeline(String workload, String kind, int size) throws IOException {
+        Utility utility = new Utility();
+        PixelBuffer pixels = synthetic(kind, size, size, 1);
+
+        switch (workload) {
+            case "summedAreaTable":
+                return () -> new SummedAreaTable(pixels).getWidth();
+            case "buildQuadtree": {
+                SummedAreaTable summedAreaTable = new SummedAreaTable(pixels);
+                return () -> {
+                    Utility.HuffmanCoding hc = utility.new HuffmanCoding();
+                    utility.buildQuadtreeWrapper(pixels, summedAreaTable, SplitCriterion.PASS_RATIO,
+                        Utility.MAX_LOSS, Utility.MIN_DEPTH, Utility.MAX_DEPTH, hc);
+                    return hc.frequencies.size();
+                };
+            }
+            // The VARIANCE tree both ways: summed-area table top-down, and the pyramid bottom-up
+            case "buildQuadtreeVariance":
+                return () -> {
+                    Utility.HuffmanCoding hc = utility.new HuffmanCoding();
+                    utility.buildQuadtreeWrapper(pixels, new SummedAreaTable(pixels, true), SplitCriterion.VARIANCE,
+                        Utility.MAX_LOSS, Utility.MIN_DEPTH, Utility.MAX_DEPTH, hc);
+                    return hc.frequencies.size();
+                };
+            case "buildQuadtreePyramid":
+                return () -> {
+                    Utility.HuffmanCoding hc = utility.new HuffmanCoding();
+                    utility.buildQuadtreeFromPyramid(new VariancePyramid(pixels, Utility.MAX_LOSS, Utility.MIN_DEPTH,
+                        Utility.MAX_DEPTH), hc);
+                    return hc.frequencies.size();
+                };
+            case "huffman": {
+                Quadtree tree = utility.buildQuadtreeWrapper(pixels, new SummedAreaTable(pixels), SplitCriterion.PASS_RATIO,
+                    Utility.MAX_LOSS, Utility.MIN_DEPTH, Utility.MAX_DEPTH, utility.new HuffmanCoding());
+                return () -> {
+                    Utility.HuffmanCoding hc = utility.new HuffmanCoding();
+                    tree.countColors(hc.frequencies);
+                    int[] palette = hc.frequencies.sortedKeys();
+                    int[] codeLengths = hc.buildCodeLengths(palette, Utility.MAX_CODE_LENGTH);
+                    hc.sortCanonical(palette, codeLengths);
+                    return hc.generateCanonicalCodes(palette, codeLengths).size();
+                };
+            }
+            case "compress":
+                return compress(utility, pixels, CompressionOptions.LEGACY);
+            case "compressFast":
+                return compress(utility, pixels, CompressionOptions.FAST);
+            case "compressBalanced":
+                return compress(utility, pixels, CompressionOptions.BALANCED);
+            case "compressSmallest":
+                return compress(utility, pixels, CompressionOptions.SMALLEST);
+            // Rate control: one pyramid, then only prunes and encodes of the tree
+            case "compressPsnr32":
+                return compress(utility, pixels, CompressionOptions.BALANCED.withTargetPsnr(32));
+            case "compressHalfSize":
+                return compress(utility, pixels, CompressionOptions.BALANCED.withMaxBytes(utility.compress(pixels).length / 2));
+            case "decompress": {
+                String path = compressedFile(utility, pixels);
+                return () -> read(() -> utility.decompressBuffer(path)).getPixels()[0];
+            }
+            case "decompressScaled8": {
+                String path = compressedFile(utility, pixels);
+                return () -> read(() -> utility.decompressScaled(path, 8)).getPixels()[0];
+            }
+            case "decompressRegion": {
+                String path = compressedFile(utility, pixels);
+                return () -> read(() -> utility.decompressRegion(path, size / 4, size / 4, size / 4, size / 4)).getPixels()[0];
+            }
+            case "toImage":
+                return () -> new PixeltoImageConverter(pixels).toImage().getWidth();
+            case "toPixelBuffer": {
+                BufferedImage original = new PixeltoImageConverter(pixels).toImage();
+                return () -> ImagetoPixelConverter.toPixelBuffer(original).getPixels()[0];
+            }
+            case "mse": {
+                BufferedImage[] images = originalAndDecompressed(utility, pixels);
+                return () -> (long) MSECalculator.calculateMSE(images[0], images[1]);
+            }
+            case "mae": {
+                BufferedImage[] images = originalAndDecompressed(utility, pixels);
+                return () -> (long) MAECalculator.calculateMAE(images[0], images[1]);
+            }
+            case "psnr": {
+                BufferedImage[] images = originalAndDecompressed(utility, pixels);
+                return () -> (long) PSNRCalculator.calculatePSNR(images[0], images[1]);
+            }
+            case "qualityMetrics": {
+                BufferedImage[] images = originalAndDecompressed(utility, pixels);
+                return () -> (long) QualityMetrics.compare(images[0], images[1]).getMSE();
+            }
+            case "qualityMetricsBuffer": {
+                PixelBuffer decompressed = utility.decompress(utility.compress(pixels));
+                return () -> (long) QualityMetrics.compare(pixels, decompressed).getMSE();
+            }
+            default:
+                throw new IllegalArgumentException("Unknown workload " + workload);
+        }
+    }
+
+    // isCloseEnough over every regionSize block of a 2048x2048 photo, as the
+    // allocation-free kernel or the per-pixel Color scan it replaced
+    public static LongSupplier closeEnough(String implementation, int regionSize) {
+        Utility utility = new Utility();
+        PixelBuffer pixels = synthetic("photo", 2048, 2048, 1);
+        double lossThreshold = 20.0;
+        int columns = 2048 / regionSize;
+        int regions = columns * columns;
+        int[] averages = new int[regions];
+        for (int i = 0; i < regions; i++) {
+            averages[i] = pixels.get((i % columns) * regionSize, (i / columns) * regionSize);
+        }
+
+        // Both versions must agree before their timings mean anything
+        for (int i = 0; i < regions; i++) {
+            int x = (i % columns) * regionSize;
+            int y = (i / columns) * regionSize;
+            if (utility.isCloseEnough(pixels, x, y, regionSize, regionSize, averages[i], lossThreshold)
+                    != legacyIsCloseEnough(pixels, x, y, regionSize, regionSize, averages[i], lossThreshold)) {
+                throw new IllegalStateException("isCloseEnough disagrees with the original at " + x + "," + y);
+            }
+        }
+
+        boolean legacy;
+        switch (implementation) {
+            case "legacy":
+                legacy = true;
+                break;
+            case "kernel":
+                legacy = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown implementation " + implementation);
+        }
+        return () -> {
+            long passed = 0;
+            for (int i = 0; i < regions; i++) {
+                int x = (i % columns) * regionSize;
+                int y = (i / columns) * regionSize;
+                boolean close = legacy
+                    ? legacyIsCloseEnough(pixels, x, y, regionSize, regionSize, averages[i], lossThreshold)
+                    : utility.isCloseEnough(pixels, x, y, regionSize, regionSize, averages[i], lossThreshold);
+                passed += close ? 1 : 0;
+            }
+            return passed;
+        };
+    }
+
+    // Generated locally so runs do not depend on the contents of Original/
+    public static PixelBuffer synthetic(String kind, int width, int height, long seed) {
+        Random random = new Random(seed);
+        PixelBuffer buffer = new PixelBuffer(width, height);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red, green, blue;
+                switch (kind) {
+                    case "flat":
+                        red = 40;
+                        green = 120;
+                        blue = 200;
+                        break;
+                    case "gradient":
+                        red = x * 255 / Math.max(1, width - 1);
+                        green = y * 255 / Math.max(1, height - 1);
+                        blue = (x + y) * 255 / Math.max(1, width + height - 2);
+                        break;
+                    case "noise":
+                        red = random.nextInt(256);
+                        green = random.nextInt(256);
+                        blue = random.nextInt(256);
+                        break;
+                    case "photo":
+                        // Smooth shapes with mild sensor noise, roughly like a photo
+                        double wave = Math.sin(x / 37.0) * Math.cos(y / 53.0);
+                        red = clamp((int) (128 + 100 * wave) + random.nextInt(12) - 6);
+                        green = clamp((int) (128 + 90 * Math.sin((x + y) / 71.0)) + random.nextInt(12) - 6);
+                        blue = clamp((int) (128 + 80 * Math.cos((x - y) / 97.0)) + random.nextInt(12) - 6);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown image kind " + kind);
+                }
+                buffer.set(x, y, (red << 16) | (green << 8) | blue);
+            }
+        }
+        return buffer;
+    }
+
+    // The method as it was before the squared-distance kernel, kept as the baseline
+    private static boolean legacyIsCloseEnough(PixelBuffer pixels, int xStart, int yStart, int width, int height,
+            int avgColor, double lossThreshold) {
+        int count = 0;
+        for (int x = xStart; x < Math.min(xStart + width, pixels.getWidth()); x++) {
+            for (int y = yStart; y < Math.min(yStart + height, pixels.getHeight()); y++) {
+                Color currentColor = new Color(pixels.get(x, y));
+                double distance = Math.sqrt(
+                        Math.pow(currentColor.getRed() - ((avgColor >> 16) & 0xFF), 2) +
+                                Math.pow(currentColor.getGreen() - ((avgColor >> 8) & 0xFF), 2) +
+                                Math.pow(currentColor.getBlue() - (avgColor & 0xFF), 2));
+                if (distance <= lossThreshold * 255 / 100) {
+                    count++;
+                }
+            }
+        }
+        return (double) count / (width * height) >= 0.9;
+    }
+
+    private interface Read {
+        PixelBuffer read() throws IOException;
+    }
+
+    private static LongSupplier compress(Utility utility, PixelBuffer pixels, CompressionOptions options) {
+        return () -> {
+            try {
+                return utility.compress(pixels, options).length;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private static PixelBuffer read(Read read) {
+        try {
+            return read.read();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The LEGACY encoding in a temporary file, removed when the JVM exits
+    private static String compressedFile(Utility utility, PixelBuffer pixels) throws IOException {
+        File compressed = File.createTempFile("benchmark", ".bin");
+        compressed.deleteOnExit();
+        utility.Compress(pixels, compressed.getPath());
+        return compressed.getPath();
+    }
+
+    private static BufferedImage[] originalAndDecompressed(Utility utility, PixelBuffer pixels) throws IOException {
+        return new BufferedImage[] { new PixeltoImageConverter(pixels).toImage(),
+            new PixeltoImageConverter(utility.decompress(utility.compress(pixels))).toImage() };
+    }
+
+    private static int clamp(int value) {
+        return Math.min(255, Math.max(0, value));
+    }
+}
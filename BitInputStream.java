@@ -0,0 +1,129 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// Reads bits MSB-first from a stream written by BitOutputStream. Reads past the
+// end of the data return zero bits, matching the padding of the last byte.
+public class BitInputStream {
+    private static final int CHUNK_SIZE = 8192;
+
+    // in is null when reading straight from a caller's buffer
+    private final InputStream in;
+    private final byte[] chunk;
+    private final ByteBuffer source;
+    private long sourceOffset = 0;  // bytes that came before the current contents of source
+    private boolean endOfStream = false;
+    private boolean pastEnd = false;
+
+    // Left-aligned: the next bit to be read is the top bit of buffer
+    private long buffer = 0;
+    private int bitCount = 0;
+
+    public BitInputStream(InputStream in) {
+        this.in = in;
+        this.chunk = new byte[CHUNK_SIZE];
+        this.source = ByteBuffer.wrap(chunk, 0, 0);
+    }
+
+    // Reads the remaining bytes of data in place; its position is left untouched
+    public BitInputStream(ByteBuffer data) {
+        this.in = null;
+        this.chunk = null;
+        this.source = data.slice();
+    }
+
+    // Reads n bits (0 <= n <= 32) as an unsigned value
+    public int readBits(int n) throws IOException {
+        int value = peekBits(n);
+        skipBits(n);
+        return value;
+    }
+
+    // Returns the next n bits (0 <= n <= 32) without consuming them
+    public int peekBits(int n) throws IOException {
+        if (n == 0) {
+            return 0;
+        }
+        if (bitCount < n) {
+            fill(n);
+        }
+        return (int) (buffer >>> (64 - n));
+    }
+
+    // Consumes n bits that have already been peeked
+    public void skipBits(int n) {
+        buffer <<= n;
+        bitCount -= n;
+    }
+
+    // Reads len whole bytes; only valid on a byte boundary
+    public void readFully(byte[] bytes, int offset, int len) throws IOException {
+        // Bytes already in the bit buffer come first
+        while (len > 0 && bitCount >= 8 && !pastEnd) {
+            bytes[offset++] = (byte) readBits(8);
+            len--;
+        }
+        while (len > 0) {
+            if (!source.hasRemaining() && !readChunk()) {
+                throw new EOFException("Data ends " + len + " bytes early");
+            }
+            int n = Math.min(len, source.remaining());
+            source.get(bytes, offset, n);
+            offset += n;
+            len -= n;
+        }
+    }
+
+    // Bits consumed so far, counted from where this reader started
+    public long getBitPosition() {
+        return (sourceOffset + source.position()) * 8 - bitCount;
+    }
+
+    // True once a read needed bits beyond the end of the data
+    public boolean isPastEnd() {
+        return pastEnd;
+    }
+
+    private void fill(int n) throws IOException {
+        if (source.remaining() >= 8) {
+            // Top up with every whole byte that fits, in a single big-endian load
+            int bytes = (64 - bitCount) >>> 3;
+            buffer |= source.getLong(source.position()) >>> bitCount;
+            bitCount += bytes << 3;
+            if (bitCount < 64) {
+                buffer &= -1L << (64 - bitCount);
+            }
+            source.position(source.position() + bytes);
+            return;
+        }
+
+        while (bitCount <= 56) {
+            if (!source.hasRemaining() && !readChunk()) {
+                // Past the end: behave as if the stream were padded with zeros
+                if (bitCount < n) {
+                    bitCount = 64;
+                    pastEnd = true;
+                }
+                return;
+            }
+            buffer |= (long) (source.get() & 0xFF) << (56 - bitCount);
+            bitCount += 8;
+        }
+    }
+
+    private boolean readChunk() throws IOException {
+        if (in == null || endOfStream) {
+            return false;
+        }
+        int read = in.read(chunk, 0, CHUNK_SIZE);
+        if (read <= 0) {
+            endOfStream = true;
+            return false;
+        }
+        sourceOffset += source.limit();
+        source.position(0);
+        source.limit(read);
+        return true;
+    }
+}
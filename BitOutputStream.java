@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Writes bits MSB-first into a 64-bit accumulator and hands whole bytes to the
+// underlying stream. The final byte is padded with zero bits on flush().
+public class BitOutputStream {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final OutputStream out;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkLength = 0;
+
+    private long buffer = 0;
+    private int bitCount = 0;
+
+    public BitOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    // Writes the lowest n bits of value, most significant first (0 <= n <= 64)
+    public void writeBits(long value, int n) throws IOException {
+        if (n == 0) {
+            return;
+        }
+
+        int free = 64 - bitCount;
+        if (n < free) {
+            buffer = (buffer << n) | (value & mask(n));
+            bitCount += n;
+            return;
+        }
+
+        // Fill the accumulator, spill it, and keep whatever did not fit
+        int rest = n - free;
+        buffer = (free == 64 ? 0 : buffer << free) | ((value >>> rest) & mask(free));
+        writeLong(buffer);
+        buffer = value & mask(rest);
+        bitCount = rest;
+    }
+
+    // Pads to a byte boundary and pushes everything to the underlying stream
+    public void flush() throws IOException {
+        if (bitCount > 0) {
+            long aligned = buffer << (64 - bitCount);
+            int bytes = (bitCount + 7) / 8;
+            for (int i = 0; i < bytes; i++) {
+                putByte((int) (aligned >>> (56 - 8 * i)));
+            }
+            buffer = 0;
+            bitCount = 0;
+        }
+
+        out.write(chunk, 0, chunkLength);
+        chunkLength = 0;
+        out.flush();
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (chunkLength + 8 > CHUNK_SIZE) {
+            out.write(chunk, 0, chunkLength);
+            chunkLength = 0;
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            chunk[chunkLength++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void putByte(int value) throws IOException {
+        if (chunkLength == CHUNK_SIZE) {
+            out.write(chunk, 0, chunkLength);
+            chunkLength = 0;
+        }
+        chunk[chunkLength++] = (byte) value;
+    }
+
+    private static long mask(int n) {
+        return n == 64 ? -1L : (1L << n) - 1;
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.Arrays;
+
+// Open-addressing map from packed 0xRRGGBB colors to int values. Used for leaf
+// color frequencies and for color -> Huffman code lookups without boxing.
+// Not thread-safe: compress fills one from the finished tree (Quadtree.countColors).
+public class ColorMap {
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int size = 0;
+    private int mask;
+
+    public ColorMap() {
+        this(16);
+    }
+
+    public ColorMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public void increment(int color) {
+        add(color, 1);
+    }
+
+    public void add(int color, int delta) {
+        int slot = find(color);
+        if (keys[slot] == EMPTY) {
+            insert(slot, color, delta);
+        } else {
+            values[slot] += delta;
+        }
+    }
+
+    public void put(int color, int value) {
+        int slot = find(color);
+        if (keys[slot] == EMPTY) {
+            insert(slot, color, value);
+        } else {
+            values[slot] = value;
+        }
+    }
+
+    public int get(int color, int missing) {
+        int slot = find(color);
+        return keys[slot] == EMPTY ? missing : values[slot];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // All colors in ascending order, so callers iterate deterministically
+    public int[] sortedKeys() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int key : keys) {
+            if (key != EMPTY) {
+                result[n++] = key;
+            }
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private int find(int color) {
+        int slot = hash(color) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != color) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int slot, int color, int value) {
+        keys[slot] = color;
+        values[slot] = value;
+        size++;
+
+        if (size * 2 > keys.length) {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            allocate(keys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int newSlot = find(oldKeys[i]);
+                    keys[newSlot] = oldKeys[i];
+                    values[newSlot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+    }
+
+    private static int hash(int color) {
+        int h = color * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
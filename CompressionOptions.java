@@ -0,0 +1,211 @@
+// Settings for compress. Block sizes are in pixels, so the tree depth follows
+// the image: regions no larger than minBlockSize are never split, and regions
+// larger than maxBlockSize always are. A flat image can then stop at the root,
+// while a large one still gets blocks of a useful size. LEGACY keeps the fixed
+// depths of 6 to 8 that compress always used, whatever the image size.
+//
+// A target PSNR or byte budget switches compress to rate control (RateControl):
+// the tree is then pruned to meet the target within the block sizes, and the
+// loss threshold, pass ratio and criterion are not used.
+public class CompressionOptions {
+    // The output compress has always produced
+    public static final CompressionOptions LEGACY = forDepths(Utility.MIN_DEPTH, Utility.MAX_DEPTH, Utility.MAX_LOSS,
+        Utility.PASS_RATIO, SplitCriterion.PASS_RATIO, Utility.INDEX_DEPTH);
+
+    // Bottom-up variance tree, so every pixel is read once and no per-pixel table is
+    // built. The tighter loss keeps quality at or above LEGACY for slightly larger files.
+    public static final CompressionOptions FAST = new CompressionOptions(8, 64, 12.0, Utility.PASS_RATIO,
+        SplitCriterion.VARIANCE, Utility.INDEX_DEPTH);
+
+    // LEGACY's quality, with blocks that scale with the image instead of with depth
+    public static final CompressionOptions BALANCED = new CompressionOptions(8, 64, 20.0, Utility.PASS_RATIO,
+        SplitCriterion.PASS_RATIO, Utility.INDEX_DEPTH);
+
+    // Fewer, larger blocks and no subtree index. Noisy images shrink the most;
+    // smooth gradients lose some quality to the 128 pixel blocks.
+    public static final CompressionOptions SMALLEST = new CompressionOptions(16, 128, 20.0, Utility.PASS_RATIO,
+        SplitCriterion.PASS_RATIO, 0);
+
+    private final int minBlockSize, maxBlockSize;
+    // Used instead of the block sizes when positive
+    private final int fixedMinDepth, fixedMaxDepth;
+    private final double maxLoss;
+    private final double passRatio;
+    private final SplitCriterion criterion;
+    private final int indexDepth;
+    // Zero when unset; at most one of the two is set
+    private final double targetPsnr;
+    private final long maxBytes;
+
+    // maxLoss is the distance limit as a percentage of 255 (see SplitCriterion);
+    // passRatio is the share of pixels PASS_RATIO needs within it
+    public CompressionOptions(int minBlockSize, int maxBlockSize, double maxLoss, double passRatio,
+            SplitCriterion criterion, int indexDepth) {
+        this(minBlockSize, maxBlockSize, 0, 0, maxLoss, passRatio, criterion, indexDepth, 0, 0);
+        if (minBlockSize < 1 || maxBlockSize < minBlockSize) {
+            throw new IllegalArgumentException("Block sizes must satisfy 1 <= min <= max: " + minBlockSize + ", " + maxBlockSize);
+        }
+    }
+
+    private CompressionOptions(int minBlockSize, int maxBlockSize, int fixedMinDepth, int fixedMaxDepth, double maxLoss,
+            double passRatio, SplitCriterion criterion, int indexDepth, double targetPsnr, long maxBytes) {
+        if (!(maxLoss >= 0)) {
+            throw new IllegalArgumentException("Loss threshold must not be negative: " + maxLoss);
+        }
+        if (!(passRatio > 0 && passRatio <= 1)) {
+            throw new IllegalArgumentException("Pass ratio must be in (0, 1]: " + passRatio);
+        }
+        if (indexDepth < 0 || indexDepth > Utility.MAX_INDEX_DEPTH) {
+            throw new IllegalArgumentException("Index depth must be between 0 and " + Utility.MAX_INDEX_DEPTH + ": " + indexDepth);
+        }
+        if (criterion == null) {
+            throw new IllegalArgumentException("Split criterion must not be null");
+        }
+        this.minBlockSize = minBlockSize;
+        this.maxBlockSize = maxBlockSize;
+        this.fixedMinDepth = fixedMinDepth;
+        this.fixedMaxDepth = fixedMaxDepth;
+        this.maxLoss = maxLoss;
+        this.passRatio = passRatio;
+        this.criterion = criterion;
+        this.indexDepth = indexDepth;
+        this.targetPsnr = targetPsnr;
+        this.maxBytes = maxBytes;
+    }
+
+    // Fixed tree depths, the root being depth 1, regardless of the image size
+    public static CompressionOptions forDepths(int minDepth, int maxDepth, double maxLoss, double passRatio,
+            SplitCriterion criterion, int indexDepth) {
+        if (minDepth < 1 || maxDepth < minDepth || maxDepth > Utility.MAX_TREE_DEPTH) {
+            throw new IllegalArgumentException("Depths must satisfy 1 <= min <= max <= " + Utility.MAX_TREE_DEPTH + ": "
+                + minDepth + ", " + maxDepth);
+        }
+        return new CompressionOptions(0, 0, minDepth, maxDepth, maxLoss, passRatio, criterion, indexDepth, 0, 0);
+    }
+
+    // A preset by name: fast, balanced, smallest or legacy
+    public static CompressionOptions forName(String name) {
+        switch (name.toLowerCase()) {
+            case "fast":
+                return FAST;
+            case "balanced":
+                return BALANCED;
+            case "smallest":
+                return SMALLEST;
+            case "legacy":
+                return LEGACY;
+            default:
+                throw new IllegalArgumentException("Unknown preset " + name + ", expected fast, balanced, smallest or legacy");
+        }
+    }
+
+    public CompressionOptions withMaxLoss(double maxLoss) {
+        return new CompressionOptions(minBlockSize, maxBlockSize, fixedMinDepth, fixedMaxDepth, maxLoss, passRatio,
+            criterion, indexDepth, targetPsnr, maxBytes);
+    }
+
+    public CompressionOptions withCriterion(SplitCriterion criterion) {
+        return new CompressionOptions(minBlockSize, maxBlockSize, fixedMinDepth, fixedMaxDepth, maxLoss, passRatio,
+            criterion, indexDepth, targetPsnr, maxBytes);
+    }
+
+    public CompressionOptions withIndexDepth(int indexDepth) {
+        return new CompressionOptions(minBlockSize, maxBlockSize, fixedMinDepth, fixedMaxDepth, maxLoss, passRatio,
+            criterion, indexDepth, targetPsnr, maxBytes);
+    }
+
+    // Smallest output whose PSNR against the input is at least psnr dB. Replaces any byte budget.
+    public CompressionOptions withTargetPsnr(double psnr) {
+        if (!(psnr > 0)) {
+            throw new IllegalArgumentException("Target PSNR must be positive: " + psnr);
+        }
+        return new CompressionOptions(minBlockSize, maxBlockSize, fixedMinDepth, fixedMaxDepth, maxLoss, passRatio,
+            criterion, indexDepth, psnr, 0);
+    }
+
+    // Most accurate output of at most bytes bytes. Replaces any target PSNR.
+    public CompressionOptions withMaxBytes(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Byte budget must be positive: " + bytes);
+        }
+        return new CompressionOptions(minBlockSize, maxBlockSize, fixedMinDepth, fixedMaxDepth, maxLoss, passRatio,
+            criterion, indexDepth, 0, bytes);
+    }
+
+    public double getMaxLoss() {
+        return maxLoss;
+    }
+
+    public double getPassRatio() {
+        return passRatio;
+    }
+
+    public SplitCriterion getCriterion() {
+        return criterion;
+    }
+
+    public int getIndexDepth() {
+        return indexDepth;
+    }
+
+    public double getTargetPsnr() {
+        return targetPsnr;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // True when compress should meet a target PSNR or byte budget
+    public boolean hasTarget() {
+        return targetPsnr > 0 || maxBytes > 0;
+    }
+
+    // Depth above which every region of a width x height image is split
+    public int minDepth(int width, int height) {
+        return fixedMinDepth > 0 ? fixedMinDepth : depthForBlockSize(maxBlockSize, width, height);
+    }
+
+    // Depth at which every region of a width x height image becomes a leaf
+    public int maxDepth(int width, int height) {
+        return fixedMaxDepth > 0 ? fixedMaxDepth : depthForBlockSize(minBlockSize, width, height);
+    }
+
+    // Index depth for a width x height image: the configured depth, less any
+    // levels that would leave indexed subtrees under Utility.INDEX_SUBTREE_PIXELS
+    public int indexDepth(int width, int height) {
+        long pixels = (long) width * height;
+        int depth = indexDepth;
+        while (depth > 0 && pixels < (long) Utility.INDEX_SUBTREE_PIXELS << (2 * depth)) {
+            depth--;
+        }
+        return depth;
+    }
+
+    // First depth whose regions are at most blockSize pixels on each side. Halving
+    // gives the larger half ceil(size / 2), so a region at depth d is at most
+    // ceil(size / 2^(d - 1)) pixels across. Past Utility.MAX_TREE_DEPTH, only
+    // reached by images over 32768 pixels across, blocks are left larger.
+    private static int depthForBlockSize(int blockSize, int width, int height) {
+        long size = Math.max(width, height);
+        int depth = 1;
+        while (size > blockSize && depth < Utility.MAX_TREE_DEPTH) {
+            size = (size + 1) / 2;
+            depth++;
+        }
+        return depth;
+    }
+
+    @Override
+    public String toString() {
+        String blocks = fixedMaxDepth > 0 ? "depths " + fixedMinDepth + "-" + fixedMaxDepth
+            : "blocks " + minBlockSize + "-" + (maxBlockSize == Integer.MAX_VALUE ? "any" : Integer.toString(maxBlockSize)) + " px";
+        if (targetPsnr > 0) {
+            return blocks + ", target " + targetPsnr + " dB, index depth " + indexDepth;
+        }
+        if (maxBytes > 0) {
+            return blocks + ", at most " + maxBytes + " bytes, index depth " + indexDepth;
+        }
+        return blocks + ", loss " + maxLoss + ", pass ratio " + passRatio + ", " + criterion + ", index depth " + indexDepth;
+    }
+}
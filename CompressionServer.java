@@ -0,0 +1,264 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+// Local HTTP front end for Utility. POST an image to /compress to get the .bin
+// bytes back, or POST .bin bytes to /decompress to get a PNG. Requests wait on
+// I/O in their own (virtual, where available) threads, while the CPU work runs
+// on Utility.POOL, so busy cores stay bounded however many clients connect.
+//
+// Admission is by memory rather than by request count: each request reserves
+// its body, then, once the image header has been read, what its pixels will
+// take, out of a fixed budget. Requests that do not fit what is left are
+// turned away with 503, and images too large for the budget or past
+// MAX_PIXELS with 413, all before anything is decoded.
+// Usage: java CompressionServer [port] [memory budget in MB]
+public class CompressionServer {
+    private static final int DEFAULT_PORT = 8080;
+    private static final int MAX_BODY_BYTES = 256 << 20;
+    // Largest image either endpoint handles, 8192 x 8192
+    private static final long MAX_PIXELS = 1L << 26;
+    // Heap per pixel while handling a request, measured roughly: /compress holds
+    // the decoded image (up to 8 bytes per pixel for 16-bit RGBA), the pixel
+    // buffer (4) and the summed-area table (24); /decompress holds the pixel
+    // buffer, the BufferedImage and the PNG being written (4 each, and room for
+    // the output buffer to grow)
+    private static final int COMPRESS_BYTES_PER_PIXEL = 40;
+    private static final int DECOMPRESS_BYTES_PER_PIXEL = 16;
+    // The semaphore counts kilobytes, so budgets up to 2 TB fit its int permits
+    private static final int PERMIT_BYTES = 1024;
+
+    interface Handler {
+        byte[] process(byte[] body) throws Exception;
+    }
+
+    // Pixels a request will decode, from the header of its body alone
+    interface PixelCount {
+        long pixels(byte[] body) throws IOException;
+    }
+
+    private final Utility utility;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long memoryBudget;
+    private final Semaphore admission;
+
+    public CompressionServer(Utility utility, int port, long memoryBudget) throws IOException {
+        if (memoryBudget < MAX_BODY_BYTES) {
+            throw new IllegalArgumentException("Memory budget must hold at least one full request body of "
+                + MAX_BODY_BYTES + " bytes: " + memoryBudget);
+        }
+        this.utility = utility;
+        this.memoryBudget = memoryBudget;
+        this.admission = new Semaphore(permits(memoryBudget));
+        this.executor = newRequestExecutor();
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext("/compress", exchange -> handle(exchange, this::imagePixels, COMPRESS_BYTES_PER_PIXEL,
+            this::compress, "application/octet-stream"));
+        server.createContext("/decompress", exchange -> handle(exchange, this::compressedPixels, DECOMPRESS_BYTES_PER_PIXEL,
+            this::decompress, "image/png"));
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        // By default half the heap, leaving the rest for everything else
+        long memoryBudget = args.length > 1 ? Long.parseLong(args[1]) << 20 : Runtime.getRuntime().maxMemory() / 2;
+
+        CompressionServer server = new CompressionServer(new Utility(), port, memoryBudget);
+        server.start();
+        System.out.println("Listening on port " + server.getPort() + ", with " + (memoryBudget >> 20) + " MB for requests");
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // The size from the image header; the pixels are read only once admitted
+    private long imagePixels(byte[] body) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(body))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return (long) reader.getWidth(0) * reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private long compressedPixels(byte[] body) throws IOException {
+        Dimension size = utility.readDimensions(ByteBuffer.wrap(body));
+        return (long) size.width * size.height;
+    }
+
+    private byte[] compress(byte[] body) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(body));
+        if (image == null) {
+            throw new IOException("Unsupported image format");
+        }
+        return utility.compress(ImagetoPixelConverter.toPixelBuffer(image));
+    }
+
+    private byte[] decompress(byte[] body) throws IOException {
+        PixelBuffer pixels = utility.decompress(body);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new PixeltoImageConverter(pixels).toImage(), "png", out);
+        return out.toByteArray();
+    }
+
+    private void handle(HttpExchange exchange, PixelCount pixelCount, int bytesPerPixel, Handler handler, String contentType)
+            throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendText(exchange, 405, "Use POST");
+                return;
+            }
+            String declared = exchange.getRequestHeaders().getFirst("Content-Length");
+            long declaredLength;
+            try {
+                declaredLength = declared == null ? MAX_BODY_BYTES : Long.parseLong(declared);
+            } catch (NumberFormatException e) {
+                declaredLength = -1;
+            }
+            if (declaredLength < 0) {
+                sendText(exchange, 400, "Bad request: invalid Content-Length " + declared);
+                return;
+            }
+            if (declaredLength > MAX_BODY_BYTES) {
+                sendText(exchange, 413, "Request body is larger than " + MAX_BODY_BYTES + " bytes");
+                return;
+            }
+
+            // The body first, as much as it declares, or the most allowed if it does not
+            int reserved = permits(declaredLength);
+            if (!admission.tryAcquire(reserved)) {
+                sendBusy(exchange);
+                return;
+            }
+
+            try {
+                byte[] body = readBody(exchange.getRequestBody());
+                if (body == null) {
+                    sendText(exchange, 413, "Request body is larger than " + MAX_BODY_BYTES + " bytes");
+                    return;
+                }
+
+                long pixels;
+                try {
+                    pixels = pixelCount.pixels(body);
+                } catch (IOException e) {
+                    sendText(exchange, 400, "Bad request: " + e.getMessage());
+                    return;
+                }
+                long maxPixels = Math.min(MAX_PIXELS, (memoryBudget - MAX_BODY_BYTES) / bytesPerPixel);
+                if (pixels > maxPixels) {
+                    sendText(exchange, 413, "Image of " + pixels + " pixels is larger than " + maxPixels + " pixels");
+                    return;
+                }
+
+                // Then the pixels, trading the body's reservation for its actual length
+                int needed = permits(body.length) + permits(pixels * bytesPerPixel);
+                if (needed > reserved) {
+                    if (!admission.tryAcquire(needed - reserved)) {
+                        sendBusy(exchange);
+                        return;
+                    }
+                } else {
+                    admission.release(reserved - needed);
+                }
+                reserved = needed;
+
+                byte[] response = Utility.POOL.submit(() -> handler.process(body)).get();
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+            } catch (ExecutionException e) {
+                // The pool wraps checked exceptions, so look through the chain for bad input
+                for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                    if (cause instanceof IOException || cause instanceof IllegalArgumentException) {
+                        sendText(exchange, 400, "Bad request: " + cause.getMessage());
+                        return;
+                    }
+                }
+                e.getCause().printStackTrace();
+                sendText(exchange, 500, "Internal error");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendText(exchange, 503, "Shutting down");
+            } finally {
+                admission.release(reserved);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Returns null once the body grows past MAX_BODY_BYTES
+    private static byte[] readBody(InputStream in) throws IOException {
+        byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+        return body.length > MAX_BODY_BYTES ? null : body;
+    }
+
+    private static int permits(long bytes) {
+        return (int) ((bytes + PERMIT_BYTES - 1) / PERMIT_BYTES);
+    }
+
+    private static void sendBusy(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendText(exchange, 503, "Too many requests in progress");
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // One virtual thread per request on JDK 21+, a cached pool before that;
+    // either way the memory budget bounds the work in progress
+    private static ExecutorService newRequestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
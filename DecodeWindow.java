@@ -0,0 +1,50 @@
+// Where decoded leaves are painted: the source region starting at (x, y),
+// sampled every factor pixels. Each output pixel takes the color of the leaf
+// under its top-left source pixel, so a factor of 1 over the whole image is a
+// plain full decode.
+public class DecodeWindow {
+    private final int x, y, factor;
+    private final PixelBuffer pixels;
+
+    public DecodeWindow(int x, int y, int width, int height, int factor) {
+        if (factor < 1) {
+            throw new IllegalArgumentException("Scale factor must be at least 1: " + factor);
+        }
+        this.x = x;
+        this.y = y;
+        this.factor = factor;
+        this.pixels = new PixelBuffer(ceilDiv(width, factor), ceilDiv(height, factor));
+    }
+
+    public PixelBuffer getPixels() {
+        return pixels;
+    }
+
+    // True when some output pixel samples the source rectangle
+    public boolean overlaps(int xStart, int yStart, int width, int height) {
+        return first(xStart, x) < last(xStart + width, x, pixels.getWidth())
+            && first(yStart, y) < last(yStart + height, y, pixels.getHeight());
+    }
+
+    // Paints every output pixel sampled from the source rectangle
+    public void fill(int xStart, int yStart, int width, int height, int rgb) {
+        int outX = first(xStart, x);
+        int outY = first(yStart, y);
+        pixels.fill(outX, outY, last(xStart + width, x, pixels.getWidth()) - outX,
+            last(yStart + height, y, pixels.getHeight()) - outY, rgb);
+    }
+
+    // First output index whose sample is at or after source coordinate start
+    private int first(int start, int origin) {
+        return Math.max(0, factor == 1 ? start - origin : ceilDiv(start - origin, factor));
+    }
+
+    // Output index just past the last sample before source coordinate end
+    private int last(int end, int origin, int size) {
+        return Math.min(size, factor == 1 ? end - origin : ceilDiv(end - origin, factor));
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return -Math.floorDiv(-value, divisor);
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Lookup-table decoder for the quadtree bitstream. Every symbol in the stream is
+// either the split flag '0' or a leaf flag '1' followed by a color code, so both
+// are resolved with a single probe of the same table. Codes longer than the root
+// table spill into second-level tables, which keeps the tables small for deep codes.
+public class HuffmanDecoder {
+    public static final int SPLIT = -1;
+
+    private static final int ROOT_BITS = 11;
+    private static final int SUB_BITS = 8;
+    private static final int MAX_CODE_LENGTH = 62;
+
+    // Entry layout: bits 0-5 hold the bits to consume (or the index width of a
+    // sub-table), bits 6-7 the kind, bits 8-31 the packed RGB color or sub-table offset
+    private static final int LENGTH_MASK = 0x3F;
+    private static final int KIND_MASK = 3 << 6;
+    private static final int KIND_SPLIT = 1 << 6;
+    private static final int KIND_LEAF = 2 << 6;
+    private static final int KIND_TABLE = 3 << 6;
+
+    private int[] table = new int[1 << ROOT_BITS];
+    private int tableSize = 0;
+    private final int rootBits;
+
+    // colors are packed 0xRRGGBB; codes[i] holds the lowest lengths[i] bits of the code
+    public HuffmanDecoder(int[] colors, long[] codes, int[] lengths) throws IOException {
+        int n = colors.length;
+
+        long[] symbolCodes = new long[n + 1];
+        int[] symbolLengths = new int[n + 1];
+        int[] symbolEntries = new int[n + 1];
+
+        symbolCodes[0] = 0;
+        symbolLengths[0] = 1;
+        symbolEntries[0] = KIND_SPLIT;
+
+        for (int i = 0; i < n; i++) {
+            if (lengths[i] < 0 || lengths[i] > MAX_CODE_LENGTH) {
+                throw new IOException("Unsupported Huffman code length: " + lengths[i]);
+            }
+            symbolCodes[i + 1] = (1L << lengths[i]) | (codes[i] & mask(lengths[i]));
+            symbolLengths[i + 1] = lengths[i] + 1;
+            symbolEntries[i + 1] = KIND_LEAF | ((colors[i] & 0xFFFFFF) << 8);
+        }
+
+        List<Integer> members = new ArrayList<Integer>(n + 1);
+        for (int i = 0; i <= n; i++) {
+            members.add(i);
+        }
+
+        int root = build(members, 0, ROOT_BITS, symbolCodes, symbolLengths, symbolEntries);
+        rootBits = root & LENGTH_MASK;
+    }
+
+    // Returns SPLIT for an internal node, otherwise the packed RGB color of a leaf
+    public int decode(BitInputStream in) throws IOException {
+        int bits = rootBits;
+        int entry = table[in.peekBits(bits)];
+
+        while ((entry & KIND_MASK) == KIND_TABLE) {
+            in.skipBits(bits);
+            bits = entry & LENGTH_MASK;
+            entry = table[(entry >>> 8) + in.peekBits(bits)];
+        }
+
+        if ((entry & KIND_MASK) == 0) {
+            throw new IOException("Invalid code in compressed data");
+        }
+
+        in.skipBits(entry & LENGTH_MASK);
+        return (entry & KIND_MASK) == KIND_LEAF ? entry >>> 8 : SPLIT;
+    }
+
+    private int build(List<Integer> members, int consumed, int maxBits, long[] codes, int[] lengths, int[] entries)
+        throws IOException {
+        int longest = 0;
+        for (int m : members) {
+            longest = Math.max(longest, lengths[m] - consumed);
+        }
+
+        int bits = Math.min(longest, maxBits);
+        int offset = allocate(1 << bits);
+
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<Integer, List<Integer>>();
+        for (int m : members) {
+            int remaining = lengths[m] - consumed;
+            long remainingCode = codes[m] & mask(remaining);
+
+            if (remaining <= bits) {
+                // Short code: replicate it across every index that starts with it
+                int first = (int) (remainingCode << (bits - remaining));
+                int span = 1 << (bits - remaining);
+                for (int k = first; k < first + span; k++) {
+                    if (table[offset + k] != 0) {
+                        throw new IOException("Huffman codes are not prefix-free");
+                    }
+                    table[offset + k] = entries[m] | remaining;
+                }
+            } else {
+                int prefix = (int) (remainingCode >>> (remaining - bits));
+                groups.computeIfAbsent(prefix, p -> new ArrayList<Integer>()).add(m);
+            }
+        }
+
+        for (Map.Entry<Integer, List<Integer>> group : groups.entrySet()) {
+            int slot = offset + group.getKey();
+            if (table[slot] != 0) {
+                throw new IOException("Huffman codes are not prefix-free");
+            }
+            // Build first: allocating the sub-table may replace the array
+            int subTable = build(group.getValue(), consumed + bits, SUB_BITS, codes, lengths, entries);
+            table[slot] = subTable;
+        }
+
+        return KIND_TABLE | (offset << 8) | bits;
+    }
+
+    private int allocate(int size) throws IOException {
+        if (tableSize + size > (1 << 24)) {
+            throw new IOException("Huffman decoding table too large");
+        }
+        if (tableSize + size > table.length) {
+            int[] grown = new int[Math.max(table.length * 2, tableSize + size)];
+            System.arraycopy(table, 0, grown, 0, tableSize);
+            table = grown;
+        }
+        int offset = tableSize;
+        tableSize += size;
+        return offset;
+    }
+
+    private static long mask(int n) {
+        return n == 64 ? -1L : (1L << n) - 1;
+    }
+}
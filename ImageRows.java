@@ -0,0 +1,106 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+// Reads BufferedImage rows as packed 0xRRGGBB ints. The common sRGB layouts
+// are read straight from the raster's backing array; anything else goes
+// through getRGB, which handles color conversion.
+public class ImageRows {
+    private final BufferedImage image;
+    private final Raster raster;
+    private final int[] intData;
+    private final byte[] byteData;
+    private final int redOffset, greenOffset, blueOffset, pixelStride;
+
+    public ImageRows(BufferedImage image) {
+        this.image = image;
+        this.raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        SampleModel sampleModel = raster.getSampleModel();
+
+        int[] ints = null;
+        byte[] bytes = null;
+        int red = 0, green = 0, blue = 0, stride = 0;
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                if (buffer instanceof DataBufferInt && sampleModel instanceof SinglePixelPackedSampleModel) {
+                    ints = ((DataBufferInt) buffer).getData();
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                if (buffer instanceof DataBufferByte && sampleModel instanceof ComponentSampleModel) {
+                    ComponentSampleModel components = (ComponentSampleModel) sampleModel;
+                    int[] bandOffsets = components.getBandOffsets();
+                    bytes = ((DataBufferByte) buffer).getData();
+                    red = bandOffsets[0];
+                    green = bandOffsets[1];
+                    blue = bandOffsets[2];
+                    stride = components.getPixelStride();
+                }
+                break;
+            default:
+                break;
+        }
+
+        this.intData = ints;
+        this.byteData = bytes;
+        this.redOffset = red;
+        this.greenOffset = green;
+        this.blueOffset = blue;
+        this.pixelStride = stride;
+    }
+
+    // Fills row[0, width) with row y of the image
+    public void read(int y, int[] row) {
+        read(y, row, 0);
+    }
+
+    // Fills dest[offset, offset + width) with row y of the image
+    public void read(int y, int[] dest, int offset) {
+        int width = image.getWidth();
+        int end = offset + width;
+
+        if (intData != null) {
+            int start = elementOffset(y) - offset;
+            for (int x = offset; x < end; x++) {
+                dest[x] = intData[start + x] & 0xFFFFFF;
+            }
+        } else if (byteData != null) {
+            int index = elementOffset(y);
+            for (int x = offset; x < end; x++, index += pixelStride) {
+                dest[x] = ((byteData[index + redOffset] & 0xFF) << 16)
+                    | ((byteData[index + greenOffset] & 0xFF) << 8)
+                    | (byteData[index + blueOffset] & 0xFF);
+            }
+        } else {
+            image.getRGB(0, y, width, 1, dest, offset, width);
+            for (int x = offset; x < end; x++) {
+                dest[x] &= 0xFFFFFF;
+            }
+        }
+    }
+
+    // Array index of the first element of row y, allowing for sub-image rasters
+    private int elementOffset(int y) {
+        SampleModel sampleModel = raster.getSampleModel();
+        int x = -raster.getSampleModelTranslateX();
+        int row = y - raster.getSampleModelTranslateY();
+        int offset;
+        if (sampleModel instanceof SinglePixelPackedSampleModel) {
+            offset = ((SinglePixelPackedSampleModel) sampleModel).getOffset(x, row);
+        } else {
+            // Band offsets are added per channel, so start from the pixel itself
+            ComponentSampleModel components = (ComponentSampleModel) sampleModel;
+            offset = row * components.getScanlineStride() + x * pixelStride;
+        }
+        return raster.getDataBuffer().getOffset() + offset;
+    }
+}
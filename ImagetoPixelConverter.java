@@ -4,7 +4,11 @@ import java.io.IOException;
 import javax.imageio.ImageIO;
 
 public class ImagetoPixelConverter {
+    // Pixels converted per task when a large image is split across the pool
+    private static final int PIXELS_PER_TASK = 1 << 16;
+
     private BufferedImage image;
+    private PixelBuffer pixelBuffer;
     private int[][][] pixelData;
 
     public ImagetoPixelConverter(String imagePath) {
@@ -13,31 +17,43 @@ public class ImagetoPixelConverter {
             File imageFile = new File(imagePath);
             this.image = ImageIO.read(imageFile);
             
-            // Get image width and height
-            int width = image.getWidth();
-            int height = image.getHeight();
-            
-            // Initialize the pixelData array
-            this.pixelData = new int[width][height][3];
-            
-            // Convert the image into pixelData
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    int color = image.getRGB(x, y);
-                    int red = (color >> 16) & 0xFF;
-                    int green = (color >> 8) & 0xFF;
-                    int blue = color & 0xFF;
-                    pixelData[x][y][0] = red;
-                    pixelData[x][y][1] = green;
-                    pixelData[x][y][2] = blue;
-                }
-            }
+            this.pixelBuffer = toPixelBuffer(image);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // Converts any BufferedImage into packed RGB pixels, dropping alpha
+    public static PixelBuffer toPixelBuffer(BufferedImage image) {
+        // Get image width and height
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        // Initialize the pixel buffer
+        PixelBuffer pixelBuffer = new PixelBuffer(width, height);
+        int[] pixels = pixelBuffer.getPixels();
+
+        // Convert the image into packed RGB pixels a row at a time, straight
+        // from the raster for the common layouts; large images split by rows
+        ImageRows rows = new ImageRows(image);
+        int grain = Math.max(1, PIXELS_PER_TASK / Math.max(1, width));
+        ParallelRange.forEach(0, height, grain, (from, to) -> {
+            for (int y = from; y < to; y++) {
+                rows.read(y, pixels, y * width);
+            }
+        });
+        return pixelBuffer;
+    }
+
+    public PixelBuffer getPixelBuffer() {
+        return pixelBuffer;
+    }
+
+    // Old int[width][height][3] layout, built on first use
     public int[][][] getPixelData() {
+        if (pixelData == null && pixelBuffer != null) {
+            pixelData = pixelBuffer.toArray();
+        }
         return pixelData;
     }
 
@@ -0,0 +1,42 @@
+import java.util.concurrent.RecursiveAction;
+
+// Runs a loop body over [from, to) in chunks on the shared ForkJoin pool.
+public class ParallelRange {
+
+    public interface Body {
+        void run(int from, int to);
+    }
+
+    // Ranges no longer than grain run on the calling thread
+    public static void forEach(int from, int to, int grain, Body body) {
+        if (to - from <= grain) {
+            body.run(from, to);
+            return;
+        }
+        Utility.POOL.invoke(new RangeTask(from, to, Math.max(1, grain), body));
+    }
+
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to, grain;
+        private final Body body;
+
+        RangeTask(int from, int to, int grain, Body body) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                body.run(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(from, middle, grain, body), new RangeTask(middle, to, grain, body));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.Arrays;
+
+// Image pixels in one row-major int[], each packed as 0xRRGGBB. Replaces the
+// int[width][height][3] layout, which needs a separate 3-int array per pixel.
+public class PixelBuffer {
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    public PixelBuffer(int width, int height) {
+        this(width, height, new int[Math.multiplyExact(width, height)]);
+    }
+
+    public PixelBuffer(int width, int height, int[] pixels) {
+        if (pixels.length != (long) width * height) {
+            throw new IllegalArgumentException("Expected " + ((long) width * height) + " pixels but got " + pixels.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    // Adapter for the old pixels[x][y][channel] layout
+    public static PixelBuffer fromArray(int[][][] pixelData) {
+        int width = pixelData.length;
+        int height = pixelData[0].length;
+        PixelBuffer buffer = new PixelBuffer(width, height);
+
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int[] rgb = pixelData[x][y];
+                buffer.pixels[y * width + x] = (rgb[0] << 16) | (rgb[1] << 8) | rgb[2];
+            }
+        }
+        return buffer;
+    }
+
+    public int[][][] toArray() {
+        int[][][] pixelData = new int[width][height][3];
+
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int rgb = pixels[y * width + x];
+                pixelData[x][y][0] = (rgb >> 16) & 0xFF;
+                pixelData[x][y][1] = (rgb >> 8) & 0xFF;
+                pixelData[x][y][2] = rgb & 0xFF;
+            }
+        }
+        return pixelData;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // The backing array, row-major with a stride of getWidth()
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int get(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    public void set(int x, int y, int rgb) {
+        pixels[y * width + x] = rgb;
+    }
+
+    // Fills a rectangle, clipped to the buffer
+    public void fill(int xStart, int yStart, int w, int h, int rgb) {
+        int xEnd = Math.min(xStart + w, width);
+        int yEnd = Math.min(yStart + h, height);
+        if (xStart >= xEnd) {
+            return;
+        }
+
+        for (int y = yStart; y < yEnd; y++) {
+            Arrays.fill(pixels, y * width + xStart, y * width + xEnd, rgb);
+        }
+    }
+}
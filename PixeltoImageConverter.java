@@ -1,31 +1,43 @@
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 import javax.imageio.ImageIO;
 
 public class PixeltoImageConverter {
-    private int[][][] pixelData;
+    // Pixels copied per task when a large image is split across the pool
+    private static final int PIXELS_PER_TASK = 1 << 16;
+
+    private PixelBuffer pixelBuffer;
     private int width;
     private int height;
 
     public PixeltoImageConverter(int[][][] pixelData) {
-        this.pixelData = pixelData;
-        this.width = pixelData.length;
-        this.height = pixelData[0].length;
+        this(PixelBuffer.fromArray(pixelData));
     }
 
-    public void saveImage(String outputImagePath, String format) {
+    public PixeltoImageConverter(PixelBuffer pixelBuffer) {
+        this.pixelBuffer = pixelBuffer;
+        this.width = pixelBuffer.getWidth();
+        this.height = pixelBuffer.getHeight();
+    }
+
+    public BufferedImage toImage() {
         BufferedImage outputImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                int red = pixelData[x][y][0];
-                int green = pixelData[x][y][1];
-                int blue = pixelData[x][y][2];
-                int rgb = (red << 16) | (green << 8) | blue; // Create an RGB color from the components
-                outputImage.setRGB(x, y, rgb);
-            }
-        }
+        // A fresh TYPE_INT_RGB raster is one row-major int[] with a stride of
+        // width, the same layout as the pixel buffer, so rows copy straight in
+        int[] source = pixelBuffer.getPixels(); // Already packed as 0xRRGGBB
+        int[] target = ((DataBufferInt) outputImage.getRaster().getDataBuffer()).getData();
+        int grain = Math.max(1, PIXELS_PER_TASK / Math.max(1, width));
+        ParallelRange.forEach(0, height, grain, (from, to) -> {
+            System.arraycopy(source, from * width, target, from * width, (to - from) * width);
+        });
+        return outputImage;
+    }
+
+    public void saveImage(String outputImagePath, String format) {
+        BufferedImage outputImage = toImage();
 
         try {
             ImageIO.write(outputImage, format, new File(outputImagePath));
@@ -0,0 +1,100 @@
+import java.util.Arrays;
+
+// The quadtree as compress records it: the pre-order split flags as a bitset
+// and the leaf colors in the same order. That is everything the bitstream
+// holds, so no node objects or links are kept, only a bit per node and the
+// color of each leaf. Region bounds follow from the image size and the split
+// rule, and subtree extents from counting children in pre-order.
+public class Quadtree {
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Bit i (bit i & 63 of word i >>> 6) is set when node i is a leaf
+    private long[] leafBits;
+    // Packed 0xRRGGBB, one per leaf in pre-order
+    private int[] colors;
+    private int nodes, leaves;
+
+    public Quadtree() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public Quadtree(int leafCapacity) {
+        colors = new int[Math.max(1, leafCapacity)];
+        leafBits = new long[words(colors.length * 4 / 3 + 1)];
+    }
+
+    // Number of nodes, leaves and splits together
+    public int size() {
+        return nodes;
+    }
+
+    public boolean isLeaf(int node) {
+        return (leafBits[node >>> 6] & (1L << node)) != 0;
+    }
+
+    // Leaf flags of nodes 64 * index to 64 * index + 63, lowest bit first
+    public long leafWord(int index) {
+        return leafBits[index];
+    }
+
+    // Color of the leaf-th leaf in pre-order
+    public int getLeafColor(int leaf) {
+        return colors[leaf];
+    }
+
+    public void addLeaf(int color) {
+        ensureNodeCapacity(nodes + 1);
+        if (leaves == colors.length) {
+            colors = Arrays.copyOf(colors, colors.length * 2);
+        }
+        leafBits[nodes >>> 6] |= 1L << nodes;
+        nodes++;
+        colors[leaves++] = color;
+    }
+
+    // Records a split; its four children are added next
+    public void addSplit() {
+        ensureNodeCapacity(nodes + 1);
+        nodes++;
+    }
+
+    // Adds another tree as the next subtree, e.g. a child built by another task
+    public void append(Quadtree subtree) {
+        ensureNodeCapacity(nodes + subtree.nodes);
+        int shift = nodes & 63;
+        int target = nodes >>> 6;
+        for (int i = 0; i < words(subtree.nodes); i++) {
+            long word = subtree.leafBits[i];
+            leafBits[target + i] |= word << shift;
+            if (shift != 0) {
+                leafBits[target + i + 1] |= word >>> (64 - shift);
+            }
+        }
+        nodes += subtree.nodes;
+
+        if (leaves + subtree.leaves > colors.length) {
+            colors = Arrays.copyOf(colors, Math.max(leaves + subtree.leaves, colors.length * 2));
+        }
+        System.arraycopy(subtree.colors, 0, colors, leaves, subtree.leaves);
+        leaves += subtree.leaves;
+    }
+
+    // Adds one to the count of every leaf color
+    public void countColors(ColorMap frequencies) {
+        for (int i = 0; i < leaves; i++) {
+            frequencies.increment(colors[i]);
+        }
+    }
+
+    // Keeps a spare word so append can spill into the one after its last
+    private void ensureNodeCapacity(int capacity) {
+        int needed = words(capacity) + 1;
+        if (needed > leafBits.length) {
+            leafBits = Arrays.copyOf(leafBits, Math.max(needed, leafBits.length * 2));
+        }
+    }
+
+    private static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+}
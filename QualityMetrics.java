@@ -0,0 +1,124 @@
+import java.awt.image.BufferedImage;
+
+// MAE, MSE, PSNR and the largest channel error between two images, gathered in
+// one row-parallel pass. The definitions match MAECalculator, MSECalculator and
+// PSNRCalculator, which each scan both images again through getRGB.
+public class QualityMetrics {
+    // Rows per task: roughly 64K pixels each
+    private static final int PIXELS_PER_TASK = 1 << 16;
+
+    private final double mae;
+    private final double mse;
+    private final double psnr;
+    private final int maxError;
+
+    private QualityMetrics(long absoluteError, long squaredError, int maxError, long pixelCount) {
+        this.mae = (double) absoluteError / (pixelCount * 3); // 3 channels (RGB)
+        this.mse = (double) squaredError / pixelCount;
+        this.psnr = 20 * Math.log10(255.0 / Math.sqrt(mse));
+        this.maxError = maxError;
+    }
+
+    public static QualityMetrics compare(PixelBuffer original, PixelBuffer decompressed) {
+        checkSize(original.getWidth(), original.getHeight(), decompressed.getWidth(), decompressed.getHeight());
+        int width = original.getWidth();
+        int[] a = original.getPixels();
+        int[] b = decompressed.getPixels();
+
+        return compare(width, original.getHeight(), (from, to, rowAbsolute, rowSquared, rowMax) -> {
+            for (int y = from; y < to; y++) {
+                accumulate(a, b, y * width, width, y, rowAbsolute, rowSquared, rowMax);
+            }
+        });
+    }
+
+    public static QualityMetrics compare(BufferedImage original, BufferedImage decompressed) {
+        checkSize(original.getWidth(), original.getHeight(), decompressed.getWidth(), decompressed.getHeight());
+        int width = original.getWidth();
+        ImageRows originalRows = new ImageRows(original);
+        ImageRows decompressedRows = new ImageRows(decompressed);
+
+        return compare(width, original.getHeight(), (from, to, rowAbsolute, rowSquared, rowMax) -> {
+            int[] a = new int[width];
+            int[] b = new int[width];
+            for (int y = from; y < to; y++) {
+                originalRows.read(y, a);
+                decompressedRows.read(y, b);
+                accumulate(a, b, 0, width, y, rowAbsolute, rowSquared, rowMax);
+            }
+        });
+    }
+
+    public double getMAE() {
+        return mae;
+    }
+
+    public double getMSE() {
+        return mse;
+    }
+
+    public double getPSNR() {
+        return psnr;
+    }
+
+    // Largest difference in any one channel, 0-255
+    public int getMaxError() {
+        return maxError;
+    }
+
+    @Override
+    public String toString() {
+        return "MAE " + mae + ", MSE " + mse + ", PSNR " + psnr + ", max error " + maxError;
+    }
+
+    private interface Rows {
+        void run(int from, int to, long[] rowAbsolute, long[] rowSquared, int[] rowMax);
+    }
+
+    // Rows write their totals to their own slots, which are summed in order
+    // afterwards, so the result does not depend on how the rows were split
+    private static QualityMetrics compare(int width, int height, Rows rows) {
+        long[] rowAbsolute = new long[height];
+        long[] rowSquared = new long[height];
+        int[] rowMax = new int[height];
+
+        int grain = Math.max(1, PIXELS_PER_TASK / Math.max(1, width));
+        ParallelRange.forEach(0, height, grain, (from, to) -> rows.run(from, to, rowAbsolute, rowSquared, rowMax));
+
+        long absoluteError = 0;
+        long squaredError = 0;
+        int maxError = 0;
+        for (int y = 0; y < height; y++) {
+            absoluteError += rowAbsolute[y];
+            squaredError += rowSquared[y];
+            maxError = Math.max(maxError, rowMax[y]);
+        }
+        return new QualityMetrics(absoluteError, squaredError, maxError, (long) width * height);
+    }
+
+    private static void accumulate(int[] a, int[] b, int start, int width, int y, long[] rowAbsolute, long[] rowSquared, int[] rowMax) {
+        long absolute = 0;
+        long squared = 0;
+        int max = 0;
+        for (int i = start; i < start + width; i++) {
+            int p = a[i];
+            int q = b[i];
+            int dr = Math.abs(((p >> 16) & 0xFF) - ((q >> 16) & 0xFF));
+            int dg = Math.abs(((p >> 8) & 0xFF) - ((q >> 8) & 0xFF));
+            int db = Math.abs((p & 0xFF) - (q & 0xFF));
+
+            absolute += dr + dg + db;
+            squared += dr * dr + dg * dg + db * db;
+            max = Math.max(max, Math.max(dr, Math.max(dg, db)));
+        }
+        rowAbsolute[y] = absolute;
+        rowSquared[y] = squared;
+        rowMax[y] = max;
+    }
+
+    private static void checkSize(int width1, int height1, int width2, int height2) {
+        if (width1 != width2 || height1 != height2) {
+            throw new IllegalArgumentException("Images differ in size: " + width1 + "x" + height1 + " and " + width2 + "x" + height2);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+// How the quadtree decides that a region is uniform enough to become a leaf.
+// Both compare against the same distance limit, maxLoss * 255 / 100 in RGB space.
+public enum SplitCriterion {
+    // At least 90% of the region's pixels lie within the limit of its average color.
+    // Exact, but scans every pixel of every candidate region.
+    PASS_RATIO,
+
+    // The root-mean-square distance to the average color is within the limit.
+    // Decided from region sums alone, so compress builds it bottom-up with
+    // VariancePyramid and reads each pixel once.
+    VARIANCE
+}
@@ -0,0 +1,96 @@
+// Integral image of a PixelBuffer: per-channel sums, so any rectangle's total and
+// mean cost four lookups. The sum of squared channel values, which variance needs,
+// is a fourth plane built only on request; compress never asks for it, as its
+// VARIANCE trees come from the VariancePyramid.
+// Sums are longs: an int overflows once 255 * pixels passes 2^31 (about 8.4M pixels).
+public class SummedAreaTable {
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+    private static final int SQUARES = 3;
+
+    // Row and column 0 stay zero so queries need no edge checks
+    private final int width, height;
+    private final int channels;
+    private final int rowStride;
+    private final long[] sums;
+
+    public SummedAreaTable(PixelBuffer pixels) {
+        this(pixels, false);
+    }
+
+    // withSquares adds the plane sumOfSquares reads, a third more memory
+    public SummedAreaTable(PixelBuffer pixels, boolean withSquares) {
+        this.width = pixels.getWidth();
+        this.height = pixels.getHeight();
+        this.channels = withSquares ? 4 : 3;
+        this.rowStride = Math.multiplyExact(width + 1, channels);
+        this.sums = new long[Math.multiplyExact(rowStride, height + 1)];
+
+        int[] rgb = pixels.getPixels();
+
+        // Pass 1: running sums along each row, rows in parallel
+        ParallelRange.forEach(0, height, 64, (from, to) -> {
+            for (int y = from; y < to; y++) {
+                long red = 0, green = 0, blue = 0, squares = 0;
+                int source = y * width;
+                int target = (y + 1) * rowStride + channels;
+                for (int x = 0; x < width; x++, target += channels) {
+                    int pixel = rgb[source + x];
+                    int r = (pixel >> 16) & 0xFF;
+                    int g = (pixel >> 8) & 0xFF;
+                    int b = pixel & 0xFF;
+                    red += r;
+                    green += g;
+                    blue += b;
+                    sums[target + RED] = red;
+                    sums[target + GREEN] = green;
+                    sums[target + BLUE] = blue;
+                    if (withSquares) {
+                        squares += r * r + g * g + b * b;
+                        sums[target + SQUARES] = squares;
+                    }
+                }
+            }
+        });
+
+        // Pass 2: accumulate down the columns, strips of columns in parallel
+        ParallelRange.forEach(0, width + 1, 256, (from, to) -> {
+            for (int y = 2; y <= height; y++) {
+                int row = y * rowStride;
+                for (int i = from * channels; i < to * channels; i++) {
+                    sums[row + i] += sums[row - rowStride + i];
+                }
+            }
+        });
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Sum of one channel (RED, GREEN or BLUE) over a rectangle inside the image
+    public long sum(int channel, int xStart, int yStart, int w, int h) {
+        return query(channel, xStart, yStart, w, h);
+    }
+
+    // Sum of r^2 + g^2 + b^2 over a rectangle inside the image
+    public long sumOfSquares(int xStart, int yStart, int w, int h) {
+        if (channels <= SQUARES) {
+            throw new IllegalStateException("Summed-area table was built without squares");
+        }
+        return query(SQUARES, xStart, yStart, w, h);
+    }
+
+    private long query(int channel, int xStart, int yStart, int w, int h) {
+        int top = yStart * rowStride;
+        int bottom = (yStart + h) * rowStride;
+        int left = xStart * channels + channel;
+        int right = (xStart + w) * channels + channel;
+        return sums[bottom + right] - sums[bottom + left] - sums[top + right] + sums[top + left];
+    }
+}
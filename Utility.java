@@ -1,18 +1,27 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.io.*;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-
-import java.awt.Color;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 public class Utility {
 
@@ -62,29 +71,12 @@ public class Utility {
         System.out.println(banner);
     }
 
-    class QuadNode {
-        int x, y, width, height;
-        Color color;
-        boolean isLeaf;
-        QuadNode[] children;
-
-        public QuadNode(int x, int y, int width, int height, Color color, boolean isLeaf) {
-            this.x = x;
-            this.y = y;
-            this.width = width;
-            this.height = height;
-            this.color = color;
-            this.isLeaf = isLeaf;
-            this.children = new QuadNode[4];
-        }
-    }
-
-    class HuffmanNode implements Comparable<HuffmanNode>, Serializable {
+    class HuffmanNode implements Comparable<HuffmanNode> {
         int freq;
-        Color color;
+        int color; // packed 0xRRGGBB, or NO_COLOR for internal nodes
         HuffmanNode left, right;
     
-        public HuffmanNode(int freq, Color color) {
+        public HuffmanNode(int freq, int color) {
             this.freq = freq;
             this.color = color;
             left = right = null;
@@ -95,21 +87,24 @@ public class Utility {
         }
     }
 
+    private static final int NO_COLOR = -1;
+
     class HuffmanCoding {
         
-        public Map<Color, Integer> frequencies = new HashMap<Color, Integer>();
+        // Counted from the leaves once the quadtree is built
+        public ColorMap frequencies = new ColorMap();
         public PriorityQueue<HuffmanNode> pq = new PriorityQueue<HuffmanNode>();
 
         public HuffmanNode buildPriorityQueue() {
-            for (Color color : frequencies.keySet()) {
-                pq.add(new HuffmanNode(frequencies.get(color), color));
+            for (int color : frequencies.sortedKeys()) {
+                pq.add(new HuffmanNode(frequencies.get(color, 0), color));
             }
 
             while (pq.size() > 1) {
                 HuffmanNode left = pq.poll();
                 HuffmanNode right = pq.poll();
 
-                HuffmanNode merged = new HuffmanNode(left.freq + right.freq, null);
+                HuffmanNode merged = new HuffmanNode(left.freq + right.freq, NO_COLOR);
                 merged.left = left;
                 merged.right = right;
 
@@ -119,17 +114,146 @@ public class Utility {
             return pq.poll();
         }
 
-        public void generateHuffmanCodes(HuffmanNode root, String code, HashMap<Color, String> huffmanCodes) {
+        // Code lengths for every color of the palette (ascending colors), none longer than
+        // maxLength. Plain Huffman is optimal when it fits, otherwise package-merge finds
+        // the best limited code.
+        public int[] buildCodeLengths(int[] palette, int maxLength) {
+            ColorMap depths = new ColorMap(palette.length);
+            collectCodeLengths(buildPriorityQueue(), 0, depths);
+
+            int[] codeLengths = new int[palette.length];
+            int longest = 0;
+            for (int i = 0; i < palette.length; i++) {
+                codeLengths[i] = depths.get(palette[i], 0);
+                longest = Math.max(longest, codeLengths[i]);
+            }
+            if (longest <= maxLength) {
+                return codeLengths;
+            }
+
+            long[] weights = new long[palette.length];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = frequencies.get(palette[i], 0);
+            }
+            return packageMerge(weights, maxLength);
+        }
+
+        private void collectCodeLengths(HuffmanNode root, int depth, ColorMap codeLengths) {
             if (root == null) {
                 return;
             }
-    
-            if (root.color != null) {
-                huffmanCodes.put(root.color, code);
+
+            if (root.color != NO_COLOR) {
+                codeLengths.put(root.color, depth);
             }
-    
-            generateHuffmanCodes(root.left, code + "0", huffmanCodes);
-            generateHuffmanCodes(root.right, code + "1", huffmanCodes);
+
+            collectCodeLengths(root.left, depth + 1, codeLengths);
+            collectCodeLengths(root.right, depth + 1, codeLengths);
+        }
+
+        private int[] packageMerge(long[] weights, int maxLength) {
+            int n = weights.length;
+            if (n > (1L << maxLength)) {
+                throw new IllegalArgumentException(n + " symbols do not fit in codes of " + maxLength + " bits");
+            }
+
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> weights[a] != weights[b] ? Long.compare(weights[a], weights[b]) : a - b);
+
+            long[] leaves = new long[n];
+            for (int i = 0; i < n; i++) {
+                leaves[i] = weights[order[i]];
+            }
+
+            // isPackage[level] marks which items of that level's merged list are packages;
+            // the deepest level holds only the leaves
+            boolean[][] isPackage = new boolean[maxLength][];
+            isPackage[maxLength - 1] = new boolean[n];
+            long[] current = leaves;
+
+            for (int level = maxLength - 2; level >= 0; level--) {
+                int packages = current.length / 2;
+                long[] merged = new long[n + packages];
+                boolean[] flags = new boolean[n + packages];
+
+                int i = 0, j = 0, k = 0;
+                while (i < n || j < packages) {
+                    long packageWeight = j < packages ? current[2 * j] + current[2 * j + 1] : Long.MAX_VALUE;
+                    if (i < n && leaves[i] <= packageWeight) {
+                        merged[k++] = leaves[i++];
+                    } else {
+                        flags[k] = true;
+                        merged[k++] = packageWeight;
+                        j++;
+                    }
+                }
+
+                current = merged;
+                isPackage[level] = flags;
+            }
+
+            // Select the cheapest 2n - 2 items at the top level and expand packages
+            // downwards; every time a leaf is selected its code grows by one bit
+            int[] lengths = new int[n];
+            int take = 2 * n - 2;
+            for (int level = 0; level < maxLength && take > 0; level++) {
+                int leafCount = 0;
+                int packageCount = 0;
+                for (int k = 0; k < take; k++) {
+                    if (isPackage[level][k]) {
+                        packageCount++;
+                    } else {
+                        leafCount++;
+                    }
+                }
+
+                for (int i = 0; i < leafCount; i++) {
+                    lengths[order[i]]++;
+                }
+                take = 2 * packageCount;
+            }
+
+            return lengths;
+        }
+
+        // Reorders palette and lengths into canonical order: shorter codes first, ties
+        // broken by color value. A stable counting sort keeps the ascending colors in place.
+        public void sortCanonical(int[] palette, int[] codeLengths) {
+            int[] starts = new int[MAX_CODE_LENGTH + 2];
+            for (int length : codeLengths) {
+                starts[length + 1]++;
+            }
+            for (int i = 1; i < starts.length; i++) {
+                starts[i] += starts[i - 1];
+            }
+
+            int[] sortedPalette = new int[palette.length];
+            int[] sortedLengths = new int[palette.length];
+            for (int i = 0; i < palette.length; i++) {
+                int position = starts[codeLengths[i]]++;
+                sortedPalette[position] = palette[i];
+                sortedLengths[position] = codeLengths[i];
+            }
+
+            System.arraycopy(sortedPalette, 0, palette, 0, palette.length);
+            System.arraycopy(sortedLengths, 0, codeLengths, 0, codeLengths.length);
+        }
+
+        // Maps each color to (code << 5) | length; codes are at most 24 bits long
+        public ColorMap generateCanonicalCodes(int[] palette, int[] codeLengths) {
+            ColorMap huffmanCodes = new ColorMap(palette.length);
+            int code = 0;
+            int previousLength = 0;
+            for (int i = 0; i < palette.length; i++) {
+                code <<= codeLengths[i] - previousLength;
+                huffmanCodes.put(palette[i], (code << 5) | codeLengths[i]);
+                code++;
+                previousLength = codeLengths[i];
+            }
+            return huffmanCodes;
         }
     }
 
@@ -145,164 +269,310 @@ public class Utility {
         }
     }
 
+    // Leading int of a v2/v3 file; v1 files start with the width, which is never negative
+    private static final int FORMAT_V2_MAGIC = 0xC5201002;
+    // v3 is v2 plus an index of the bit length of each subtree at a fixed depth
+    private static final int FORMAT_V3_MAGIC = 0xC5201003;
+    // Container of independently compressed tiles, see compressTiled
+    private static final int FORMAT_TILED_MAGIC = 0xC5201010;
+    static final int MAX_CODE_LENGTH = 24;
+    // A code table holds each 24-bit color at most once
+    private static final int MAX_PALETTE_SIZE = 1 << 24;
+    // Code table entries allocated before any are read; tables grow as entries arrive,
+    // so a corrupt size cannot allocate more than the data backs
+    private static final int INITIAL_PALETTE_CAPACITY = 1 << 12;
+    // Most pixels a decode allocates, the limit of a Java array
+    static final long MAX_DECODED_PIXELS = Integer.MAX_VALUE - 8;
+
+    // Levels below the root whose subtrees are indexed: 4^depth entries of 4 bytes
+    static final int INDEX_DEPTH = 2;
+    static final int MAX_INDEX_DEPTH = 4;
+    // Fewest pixels per indexed subtree; smaller images get a shallower index or
+    // none, as they decode in less time than the index costs to write and read
+    static final int INDEX_SUBTREE_PIXELS = 1 << 16;
+
+    // A depth-first walk holds at most three pending siblings per level
+    private static final int MAX_PENDING_NODES = 3 * 64 + 1;
+
+    // Deepest tree any options may ask for. The finest VariancePyramid level holds
+    // 4^(depth - 1) regions in one array, so one level more overflows an int.
+    static final int MAX_TREE_DEPTH = 16;
+
+    // Quadtree parameters of CompressionOptions.LEGACY, what Compress uses by default
+    static final int MIN_DEPTH = 6;
+    static final int MAX_DEPTH = 8;
+    static final double MAX_LOSS = 20.0;
+
     public void Compress(int[][][] pixels, String outputFileName) {
-        int minDepth = 6;
-        int maxDepth = 8;
-        double maxLoss = 20.0;
+        Compress(PixelBuffer.fromArray(pixels), outputFileName);
+    }
 
-        QuadNode root = null;
-        int[][][] preproccessedPixels = getPreprocessedPixels(pixels);
+    public void Compress(PixelBuffer pixels, String outputFileName) {
+        Compress(pixels, outputFileName, SplitCriterion.PASS_RATIO);
+    }
 
-        HuffmanCoding hc = new HuffmanCoding();
+    public void Compress(PixelBuffer pixels, String outputFileName, SplitCriterion criterion) {
+        Compress(pixels, outputFileName, CompressionOptions.LEGACY.withCriterion(criterion));
+    }
 
-        // Using the buildQuadtreeWrapper with the parameters
-        try {
-            root = buildQuadtreeWrapper(pixels, preproccessedPixels, maxLoss, minDepth, maxDepth, hc);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt(); // Restore the interrupted status
-            System.err.println("Compression was interrupted: " + e.getMessage());
-            return; // Exit the method early
-        } catch (ExecutionException e) {
-            System.err.println("An error occurred during compression: " + e.getMessage());
-            e.printStackTrace(); // This will print the root cause of the exception
-            return; // Exit the method early
+    public void Compress(PixelBuffer pixels, String outputFileName, CompressionOptions options) {
+        try (OutputStream out = new FileOutputStream(outputFileName)) {
+            compress(pixels, out, options);
+        } catch (IOException e) {
+            System.err.println("An I/O error occurred while writing the compressed data: " + e.getMessage());
         }
+    }
 
-        HuffmanNode huffmanRoot = hc.buildPriorityQueue();
+    public byte[] compress(PixelBuffer pixels) throws IOException {
+        return compress(pixels, CompressionOptions.LEGACY);
+    }
 
-        HashMap<Color, String> huffmanCodes = new HashMap<>();
-        hc.generateHuffmanCodes(huffmanRoot, "", huffmanCodes);
+    public byte[] compress(PixelBuffer pixels, CompressionOptions options) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compress(pixels, out, options);
+        return out.toByteArray();
+    }
 
-        StringBuilder sb = new StringBuilder();
-        traverseQuadTree(root, huffmanCodes, sb);
+    public void compress(PixelBuffer pixels, OutputStream out) throws IOException {
+        compress(pixels, out, SplitCriterion.PASS_RATIO);
+    }
 
-        byte[] compressedImage = createByteArrayFromStringBuilder(sb);
+    public void compress(PixelBuffer pixels, OutputStream out, SplitCriterion criterion) throws IOException {
+        compress(pixels, out, criterion, INDEX_DEPTH);
+    }
 
-        // Now we encode the huffman tree
-        int treeSize = huffmanCodes.size();
-        List<Map.Entry<Color, String>> codes = new ArrayList<Map.Entry<Color, String>>(huffmanCodes.entrySet());
+    // An indexDepth of 0 writes a v2 file without the subtree index. Small images
+    // get a shallower index, see CompressionOptions.indexDepth.
+    public void compress(PixelBuffer pixels, OutputStream out, SplitCriterion criterion, int indexDepth) throws IOException {
+        compress(pixels, out, CompressionOptions.LEGACY.withCriterion(criterion).withIndexDepth(indexDepth));
+    }
 
+    // Writes the header and the bitstream to out as they are produced. out is
+    // flushed but not closed, so callers can keep writing to it.
+    public void compress(PixelBuffer pixels, OutputStream out, CompressionOptions options) throws IOException {
+        if (options.hasTarget()) {
+            compressToTarget(pixels, out, options);
+            return;
+        }
 
-        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFileName)))) {
-            dos.writeInt(pixels.length);
-            dos.writeInt(pixels[0].length);
+        SplitCriterion criterion = options.getCriterion();
+        int indexDepth = options.indexDepth(pixels.getWidth(), pixels.getHeight());
+        int minDepth = options.minDepth(pixels.getWidth(), pixels.getHeight());
+        int maxDepth = options.maxDepth(pixels.getWidth(), pixels.getHeight());
+        double maxLoss = options.getMaxLoss();
 
-            dos.writeInt(treeSize);
-            for (int i = 0; i < codes.size(); i++) {
-                Map.Entry<Color, String> huffmanCode = codes.get(i);
-               
-                dos.writeByte(huffmanCode.getKey().getRed());
-                dos.writeByte(huffmanCode.getKey().getGreen());
-                dos.writeByte(huffmanCode.getKey().getBlue());
+        Quadtree tree = null;
 
-                dos.writeShort(huffmanCode.getValue().length());
+        HuffmanCoding hc = new HuffmanCoding();
 
-                sb.setLength(0);
-                sb.append(huffmanCode.getValue());
-                dos.write(
-                    createByteArrayFromStringBuilder(sb)
-                );
+        if (criterion == SplitCriterion.VARIANCE) {
+            // Bottom-up: every pixel is read once, and no per-pixel table is needed
+            tree = buildQuadtreeFromPyramid(new VariancePyramid(pixels, maxLoss, minDepth, maxDepth), hc);
+        } else {
+            SummedAreaTable summedAreaTable = new SummedAreaTable(pixels);
+
+            // Using the buildQuadtreeWrapper with the parameters
+            tree = buildQuadtreeWrapper(pixels, summedAreaTable, criterion, maxLoss, options.getPassRatio(), minDepth, maxDepth, hc);
+        }
+
+        writeCompressed(tree, hc, pixels.getWidth(), pixels.getHeight(), indexDepth, out);
+    }
+
+    // Rate-controlled compress: one pyramid, then trees pruned from it until the
+    // PSNR or size target is met, see RateControl. The criterion and loss
+    // threshold of the options play no part.
+    private void compressToTarget(PixelBuffer pixels, OutputStream out, CompressionOptions options) throws IOException {
+        RateControl rateControl = new RateControl(pixels, options);
+        RateControl.Encoder encoder = tree -> {
+            HuffmanCoding hc = new HuffmanCoding();
+            tree.countColors(hc.frequencies);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeCompressed(tree, hc, pixels.getWidth(), pixels.getHeight(),
+                options.indexDepth(pixels.getWidth(), pixels.getHeight()), bytes);
+            return bytes.toByteArray();
+        };
+
+        byte[] compressed = options.getTargetPsnr() > 0
+            ? rateControl.encodeForPsnr(options.getTargetPsnr(), encoder)
+            : rateControl.encodeForSize(options.getMaxBytes(), encoder);
+        out.write(compressed);
+        out.flush();
+    }
+
+    // Header, palette, optional subtree index and bitstream for a built tree
+    // whose leaf colors hc has counted
+    private void writeCompressed(Quadtree tree, HuffmanCoding hc, int width, int height, int indexDepth,
+            OutputStream out) throws IOException {
+        int[] palette = hc.frequencies.sortedKeys();
+        int[] codeLengths = hc.buildCodeLengths(palette, MAX_CODE_LENGTH);
+        hc.sortCanonical(palette, codeLengths);
+        ColorMap huffmanCodes = hc.generateCanonicalCodes(palette, codeLengths);
+
+        // Bit offsets are relative to the start of the quadtree bitstream. Each
+        // subtree is stored as its length in 32 bits; one longer than that (over
+        // 512 MB) leaves the file without an index.
+        List<Long> subtreeEnds = new ArrayList<Long>();
+        if (indexDepth > 0) {
+            indexSubtrees(tree, huffmanCodes, indexDepth, subtreeEnds);
+            long start = 0;
+            for (long end : subtreeEnds) {
+                if (end - start > 0xFFFFFFFFL) {
+                    indexDepth = 0;
+                }
+                start = end;
+            }
+        }
+
+        BitOutputStream bos = new BitOutputStream(out);
+        bos.writeBits(indexDepth > 0 ? FORMAT_V3_MAGIC : FORMAT_V2_MAGIC, 32);
+        bos.writeBits(width, 32);
+        bos.writeBits(height, 32);
+
+        // Canonical codes are fully described by their lengths in canonical order
+        bos.writeBits(palette.length, 32);
+        for (int i = 0; i < palette.length; i++) {
+            bos.writeBits(palette[i], 24);
+            bos.writeBits(codeLengths[i], 8);
+        }
+
+        if (indexDepth > 0) {
+            bos.writeBits(indexDepth, 8);
+            bos.writeBits(subtreeEnds.size(), 32);
+            long start = 0;
+            for (long end : subtreeEnds) {
+                bos.writeBits(end - start, 32);
+                start = end;
             }
+        }
 
-            dos.write(compressedImage);
+        // The quadtree bitstream follows the byte-aligned header, padded to a whole byte
+        traverseQuadTree(tree, huffmanCodes, bos);
+        bos.flush();
+    }
 
+    // Compresses an image too large to hold in memory as independent tiles of
+    // tileSize x tileSize pixels. Each row of tiles is read as one full-width
+    // band and at most workers tiles are compressed at once, which bounds memory
+    // to about a band plus workers tiles.
+    public void compressTiled(String inputImagePath, String outputFileName, int tileSize, int workers) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(inputImagePath));
+             OutputStream out = new FileOutputStream(outputFileName)) {
+            if (input == null) {
+                throw new IOException("Cannot open " + inputImagePath);
+            }
+            compressTiled(input, out, tileSize, workers);
         } catch (IOException e) {
             System.err.println("An I/O error occurred while writing the compressed data: " + e.getMessage());
         }
     }
 
-    private byte[] createByteArrayFromStringBuilder(StringBuilder sb) {
-        int paddingLength = sb.length() % 8;
-        if (paddingLength != 0) {
-            for (int i = 0; i < 8 - paddingLength; i++) {
-                sb.append("0");
-            }
+    public void compressTiled(ImageInputStream input, OutputStream out, int tileSize, int workers) throws IOException {
+        if (tileSize <= 0 || workers <= 0) {
+            throw new IllegalArgumentException("Tile size and workers must be positive: " + tileSize + ", " + workers);
         }
 
-        String byteString = sb.toString();
-        byte[] arr = new byte[byteString.length() / 8];
-        for (int i = 0; i < byteString.length() / 8; i++) {
-            for (int j = 0; j < 8; j++) {
-                arr[i] <<= 1;
-                arr[i] |= byteString.charAt(i * 8 + j) - '0';
-            }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format");
         }
+        ImageReader reader = readers.next();
 
-        return arr;
-    }
+        try {
+            reader.setInput(input, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+            dos.writeInt(FORMAT_TILED_MAGIC);
+            dos.writeInt(width);
+            dos.writeInt(height);
+            dos.writeInt(tileSize);
+
+            // Tiles are written in the order they were read, as each finishes
+            Deque<ForkJoinTask<byte[]>> inFlight = new ArrayDeque<ForkJoinTask<byte[]>>();
+            for (int tileY = 0; tileY < height; tileY += tileSize) {
+                // Sequential decoders such as PNG's inflate every row above a source
+                // region on each read, so reading tile by tile would cost the
+                // rows above once per tile rather than once per band
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, tileY, width, Math.min(tileSize, height - tileY)));
+                PixelBuffer band = ImagetoPixelConverter.toPixelBuffer(reader.read(0, param));
+
+                for (int tileX = 0; tileX < width; tileX += tileSize) {
+                    if (inFlight.size() == workers) {
+                        writeTile(dos, inFlight.removeFirst());
+                    }
 
-    private String getStringFromByteArray(StringBuilder sb, byte[] arr) {
-        // Convert byte array to String
-        sb.setLength(0);
-        for (byte b : arr) {
-            for (int i = 7; i >= 0; i--) {
-                sb.append((b >> i) & 1);
+                    PixelBuffer tile = cropColumns(band, tileX, Math.min(tileSize, width - tileX));
+                    inFlight.addLast(POOL.submit(() -> compress(tile)));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                writeTile(dos, inFlight.removeFirst());
             }
+            dos.flush();
+        } finally {
+            reader.dispose();
         }
+    }
 
-        return sb.toString();
+    // Columns [x, x + width) of every row of band
+    private static PixelBuffer cropColumns(PixelBuffer band, int x, int width) {
+        PixelBuffer tile = new PixelBuffer(width, band.getHeight());
+        for (int y = 0; y < band.getHeight(); y++) {
+            System.arraycopy(band.getPixels(), y * band.getWidth() + x, tile.getPixels(), y * width, width);
+        }
+        return tile;
     }
 
-    private String getCodeStringFromByteArray(StringBuilder sb, byte[] arr, int codeLength) {
-        sb.setLength(0);
-        for (byte b : arr) {
-            for (int i = 7; i >= 0; i--) {
-                sb.append((b >> i) & 1);
+    private void writeTile(DataOutputStream dos, ForkJoinTask<byte[]> task) throws IOException {
+        byte[] tile;
+        try {
+            tile = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing a tile");
+        } catch (ExecutionException e) {
+            // Checked exceptions arrive wrapped by the pool
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
             }
+            throw new IOException("Tile compression failed", e.getCause());
         }
-        sb.setLength(codeLength);
-        return sb.toString();
+        dos.writeInt(tile.length);
+        dos.write(tile);
     }
 
     public int[][][] Decompress(String inputFileName) throws IOException {
-        StringBuilder sb = new StringBuilder();
-
-        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(inputFileName)))) {
-            try {
-                int width = dis.readInt();
-                int height = dis.readInt();
-
-                int[][][] pixels = new int[width][height][3];
-
-                // Build huffman tree
-                HuffmanNode huffmanRoot = new HuffmanNode(0, null);
-                int treeSize = dis.readInt();
-                for (int i = 0; i < treeSize; i++) {
-                    int red = dis.readByte() & 0xFF;
-                    int green = dis.readByte() & 0xFF;
-                    int blue = dis.readByte() & 0xFF;
-
-                    int codeLength = dis.readShort();
-                    int codeLengthBytes = (int) Math.ceil(codeLength / 8.0);
-
-                    String code = getCodeStringFromByteArray(sb, dis.readNBytes(codeLengthBytes), codeLength);
-                    HuffmanNode curr = huffmanRoot;
-                    for (int j = 0; j < code.length(); j++) {
-                        if (code.charAt(j) == '0') {
-                            if (curr.left == null) {
-                                curr.left = new HuffmanNode(0, null);
-                            }
-                            curr = curr.left;
-                        } else {
-                            if (curr.right == null) {
-                                curr.right = new HuffmanNode(0, null);
-                            }
-                            curr = curr.right;
-                        }
-                    }
+        PixelBuffer pixels = decompressBuffer(inputFileName);
+        return pixels == null ? null : pixels.toArray();
+    }
 
-                    curr.color = new Color(red, green, blue);
-                }
+    public PixelBuffer decompressBuffer(String inputFileName) throws IOException {
+        return decompressFile(inputFileName, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE, 1);
+    }
 
-                String byteString = getStringFromByteArray(sb, dis.readAllBytes());
-                Queue<Character> queue = new LinkedList<Character>();
-                for (char c : byteString.toCharArray()) {
-                    queue.add(c);
-                }
+    // Decodes only the given region, clipped to the image
+    public PixelBuffer decompressRegion(String inputFileName, int x, int y, int width, int height) throws IOException {
+        return decompressFile(inputFileName, x, y, width, height, 1);
+    }
 
-                decompressQuadTree(pixels, 0, 0, width, height, huffmanRoot, queue);
+    // Decodes a preview 1/factor the size of the image in each direction
+    public PixelBuffer decompressScaled(String inputFileName, int factor) throws IOException {
+        return decompressFile(inputFileName, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE, factor);
+    }
 
-                return pixels;
+    private PixelBuffer decompressFile(String inputFileName, int x, int y, int width, int height, int factor) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(inputFileName), StandardOpenOption.READ)) {
+            try {
+                // Decode straight from the page cache; a single mapping is limited to 2 GB
+                long size = channel.size();
+                if (size <= Integer.MAX_VALUE) {
+                    return decompress(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), x, y, width, height, factor);
+                }
+                return decompress(new BitInputStream(Channels.newInputStream(channel)), null, x, y, width, height, factor);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -311,214 +581,611 @@ public class Utility {
         return null;
     }
 
-    private void decompressQuadTree(int[][][] pixels, int xStart, int yStart, int width, int height, HuffmanNode huffmanRoot, Queue<Character> queue) {
-        int halfWidth = width / 2;
-        int halfHeight = height / 2;
+    // Reads one compressed image from in. Bytes are read ahead in chunks, so in
+    // should not be shared with another reader afterwards.
+    public PixelBuffer decompress(InputStream in) throws IOException {
+        return decompress(new BitInputStream(in), null, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE, 1);
+    }
 
-        int[][] offsets = {
-                { 0, 0 }, { halfWidth, 0 }, { 0, halfHeight }, { halfWidth, halfHeight }
-        };
+    public PixelBuffer decompress(byte[] data) throws IOException {
+        return decompress(ByteBuffer.wrap(data));
+    }
 
-        char value = queue.poll();
-        if (value == '0') {
-            for (int i = 0; i < 4; i++) {
-                int xOff = offsets[i][0];
-                int yOff = offsets[i][1];
-                int w = (i % 2 == 0) ? halfWidth : width - halfWidth;
-                int h = (i < 2) ? halfHeight : height - halfHeight;
-                
-                decompressQuadTree(pixels, xStart + xOff, yStart + yOff, w, h, huffmanRoot, queue);
-            }
+    // Decodes the remaining bytes of data without copying them
+    public PixelBuffer decompress(ByteBuffer data) throws IOException {
+        return decompress(data, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE, 1);
+    }
+
+    // Decodes the region (x, y, width, height), clipped to the image, sampling
+    // every factor-th source pixel. Subtrees that no output pixel samples are
+    // parsed without painting, and indexed ones are skipped altogether.
+    public PixelBuffer decompress(ByteBuffer data, int x, int y, int width, int height, int factor) throws IOException {
+        return decompress(new BitInputStream(data), data, x, y, width, height, factor);
+    }
+
+    // Width and height from the header of compressed data, read without decoding
+    // anything, so callers can turn away images too large to decode
+    public Dimension readDimensions(ByteBuffer data) throws IOException {
+        BitInputStream bis = new BitInputStream(data);
+        int first = bis.readBits(32);
+        boolean headed = first == FORMAT_V2_MAGIC || first == FORMAT_V3_MAGIC || first == FORMAT_TILED_MAGIC;
+        int width = headed ? bis.readBits(32) : first;
+        int height = bis.readBits(32);
+        if (bis.isPastEnd()) {
+            throw new EOFException("Compressed data ends inside the header");
+        }
+        checkDimensions(width, height);
+        return new Dimension(width, height);
+    }
+
+    // data is the buffer behind bis when the bitstream can be read at random,
+    // which lets indexed files decode their subtrees in parallel
+    private PixelBuffer decompress(BitInputStream bis, ByteBuffer data, int x, int y, int width, int height, int factor)
+        throws IOException {
+        if (factor < 1) {
+            throw new IllegalArgumentException("Scale factor must be at least 1: " + factor);
+        }
+
+        // v1 files start directly with the (positive) width
+        int first = bis.readBits(32);
+        boolean canonical = first == FORMAT_V2_MAGIC || first == FORMAT_V3_MAGIC;
+        boolean tiled = first == FORMAT_TILED_MAGIC;
+
+        int imageWidth = canonical || tiled ? bis.readBits(32) : first;
+        int imageHeight = bis.readBits(32);
+        int tileSize = tiled ? bis.readBits(32) : 0;
+        if (bis.isPastEnd()) {
+            throw new EOFException("Compressed data ends inside the header");
+        }
+        checkDimensions(imageWidth, imageHeight);
+
+        int xEnd = (int) Math.min(imageWidth, Math.max(0, (long) x + width));
+        int yEnd = (int) Math.min(imageHeight, Math.max(0, (long) y + height));
+        x = Math.max(0, x);
+        y = Math.max(0, y);
+        if ((x >= xEnd || y >= yEnd) && imageWidth > 0 && imageHeight > 0) {
+            throw new IllegalArgumentException("Region lies outside the " + imageWidth + "x" + imageHeight + " image");
+        }
+
+        // Checked before allocating, as the header alone can claim any size
+        long outputPixels = (long) ceilDiv(Math.max(0, xEnd - x), factor) * ceilDiv(Math.max(0, yEnd - y), factor);
+        if (outputPixels > MAX_DECODED_PIXELS) {
+            throw new IOException("Decoded image of " + outputPixels + " pixels is too large");
+        }
+
+        DecodeWindow window = new DecodeWindow(x, y, Math.max(0, xEnd - x), Math.max(0, yEnd - y), factor);
+        if (tiled) {
+            decompressTiles(bis, data, window, imageWidth, imageHeight, tileSize);
         } else {
-            // Traverse huffman until end
-            HuffmanNode curr = huffmanRoot;
-
-            boolean done = false;
-            while (!done) {
-                boolean leafNodeReached = false;
-                char direction;
-                if (queue.size() == 0) leafNodeReached = true;
-                else {
-                    direction = queue.peek();
-                    if (
-                        (direction == '0' && curr.left == null) ||
-                        (direction == '1' && curr.right == null)
-                    ) leafNodeReached = true;
-                }
-                
-                if (leafNodeReached) {
-                    // We have reached a leaf node
-                    done = true;
-                    for (int x = xStart; x < Math.min(xStart + width, pixels.length); x++) {
-                        for (int y = yStart; y < Math.min(yStart + height, pixels[0].length); y++) {
-                            pixels[x][y][0] = curr.color.getRed();
-                            pixels[x][y][1] = curr.color.getGreen();
-                            pixels[x][y][2] = curr.color.getBlue();
-                        }
+            decompressImage(first, bis, data, window, 0, 0, imageWidth, imageHeight);
+        }
+
+        return window.getPixels();
+    }
+
+    // v1 files have no magic, so anything unrecognised reads as a v1 header
+    private static void checkDimensions(int width, int height) throws IOException {
+        if (width < 0 || height < 0) {
+            throw new IOException("Invalid image size: " + width + "x" + height);
+        }
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return -Math.floorDiv(-value, divisor);
+    }
+
+    // Reads the rest of a single v1/v2/v3 image after its dimensions and paints
+    // it into window with its top-left corner at (xStart, yStart)
+    private void decompressImage(int magic, BitInputStream bis, ByteBuffer data, DecodeWindow window, int xStart, int yStart,
+        int width, int height) throws IOException {
+        boolean canonical = magic == FORMAT_V2_MAGIC || magic == FORMAT_V3_MAGIC;
+        boolean indexed = magic == FORMAT_V3_MAGIC;
+
+        HuffmanDecoder decoder = canonical ? readCanonicalCodeTable(bis) : readExplicitCodeTable(bis);
+        int indexDepth = indexed ? bis.readBits(8) : 0;
+        long[] subtreeEnds = indexed ? readSubtreeIndex(bis) : null;
+        if (bis.isPastEnd()) {
+            throw new EOFException("Compressed data ends inside the header");
+        }
+
+        if (indexDepth > 0 && data != null) {
+            ByteBuffer payload = data.duplicate();
+            payload.position(data.position() + (int) (bis.getBitPosition() >>> 3));
+            decompressIndexed(window, xStart, yStart, width, height, decoder, payload.slice(), indexDepth, subtreeEnds);
+        } else {
+            // Without random access the index is skipped and the tree decoded in order
+            decompressQuadTree(window, xStart, yStart, width, height, decoder, bis);
+        }
+    }
+
+    // Tiles follow the container header in row-major order, each a byte length
+    // and a complete v2/v3 stream. Tiles the window does not sample are skipped.
+    private void decompressTiles(BitInputStream bis, ByteBuffer data, DecodeWindow window, int width, int height, int tileSize)
+        throws IOException {
+        if (tileSize <= 0) {
+            throw new IOException("Invalid tile size: " + tileSize);
+        }
+
+        int position = data == null ? 0 : data.position() + (int) (bis.getBitPosition() >>> 3);
+        for (int tileY = 0; tileY < height; tileY += tileSize) {
+            for (int tileX = 0; tileX < width; tileX += tileSize) {
+                int tileWidth = Math.min(tileSize, width - tileX);
+                int tileHeight = Math.min(tileSize, height - tileY);
+
+                ByteBuffer tile;
+                if (data != null) {
+                    if (data.limit() - position < 4) {
+                        throw new EOFException("Compressed data ends inside the tile table");
+                    }
+                    int length = data.getInt(position);
+                    if (length < 0 || length > data.limit() - position - 4) {
+                        throw new IOException("Invalid tile length: " + length);
                     }
+                    tile = data.duplicate();
+                    tile.position(position + 4);
+                    tile.limit(position + 4 + length);
+                    tile = tile.slice();
+                    position += 4 + length;
                 } else {
-                    direction = queue.poll();
-                    if (direction == '0') {
-                        curr = curr.left;
-                    } else {
-                        curr = curr.right;
+                    int length = bis.readBits(32);
+                    if (length < 0) {
+                        throw new IOException("Invalid tile length: " + length);
+                    }
+                    byte[] bytes = new byte[length];
+                    bis.readFully(bytes, 0, length);
+                    tile = ByteBuffer.wrap(bytes);
+                }
+
+                if (window.overlaps(tileX, tileY, tileWidth, tileHeight)) {
+                    BitInputStream tileBits = new BitInputStream(tile);
+                    int magic = tileBits.readBits(32);
+                    if ((magic != FORMAT_V2_MAGIC && magic != FORMAT_V3_MAGIC)
+                            || tileBits.readBits(32) != tileWidth || tileBits.readBits(32) != tileHeight) {
+                        throw new IOException("Tile at " + tileX + "," + tileY + " is not a " + tileWidth + "x" + tileHeight + " image");
                     }
+                    decompressImage(magic, tileBits, tile, window, tileX, tileY, tileWidth, tileHeight);
                 }
             }
         }
     }
 
-    private int[][][] getPreprocessedPixels(int[][][] pixels) {
-        int width = pixels.length;
-        int height = pixels[0].length;
+    private long[] readSubtreeIndex(BitInputStream bis) throws IOException {
+        int count = bis.readBits(32);
+        if (count < 0 || count > (1 << (2 * MAX_INDEX_DEPTH))) {
+            throw new IOException("Invalid subtree index size: " + count);
+        }
 
-        int[][][] preprocessedPixels = new int[width][height][3];
+        // Stored as lengths; the decoder wants where each subtree ends
+        long[] subtreeEnds = new long[count];
+        long end = 0;
+        for (int i = 0; i < count; i++) {
+            end += bis.readBits(32) & 0xFFFFFFFFL;
+            subtreeEnds[i] = end;
+        }
+        return subtreeEnds;
+    }
 
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                preprocessedPixels[x][y][0] = pixels[x][y][0];
-                preprocessedPixels[x][y][1] = pixels[x][y][1];
-                preprocessedPixels[x][y][2] = pixels[x][y][2];
-    
-                if (x > 0) {
-                    preprocessedPixels[x][y][0] += preprocessedPixels[x - 1][y][0];
-                    preprocessedPixels[x][y][1] += preprocessedPixels[x - 1][y][1];
-                    preprocessedPixels[x][y][2] += preprocessedPixels[x - 1][y][2];
-                }
-    
-                if (y > 0) {
-                    preprocessedPixels[x][y][0] += preprocessedPixels[x][y - 1][0];
-                    preprocessedPixels[x][y][1] += preprocessedPixels[x][y - 1][1];
-                    preprocessedPixels[x][y][2] += preprocessedPixels[x][y - 1][2];
-                }
-    
-                if (x > 0 && y > 0) {
-                    preprocessedPixels[x][y][0] -= preprocessedPixels[x - 1][y - 1][0];
-                    preprocessedPixels[x][y][1] -= preprocessedPixels[x - 1][y - 1][1];
-                    preprocessedPixels[x][y][2] -= preprocessedPixels[x - 1][y - 1][2];
+    // v2: RGB and code length per entry, codes rebuilt from the lengths
+    private HuffmanDecoder readCanonicalCodeTable(BitInputStream bis) throws IOException {
+        int treeSize = readCodeTableSize(bis);
+        int capacity = Math.min(treeSize, INITIAL_PALETTE_CAPACITY);
+        int[] colors = new int[capacity];
+        long[] codes = new long[capacity];
+        int[] codeLengths = new int[capacity];
+
+        long code = 0;
+        int previousLength = 0;
+        for (int i = 0; i < treeSize; i++) {
+            int color = bis.readBits(24);
+            int codeLength = bis.readBits(8);
+            if (bis.isPastEnd()) {
+                throw new EOFException("Compressed data ends inside the code table");
+            }
+            if (i == colors.length) {
+                capacity = (int) Math.min(treeSize, 2L * capacity);
+                colors = Arrays.copyOf(colors, capacity);
+                codes = Arrays.copyOf(codes, capacity);
+                codeLengths = Arrays.copyOf(codeLengths, capacity);
+            }
+
+            if (codeLength < previousLength || codeLength > MAX_CODE_LENGTH) {
+                throw new IOException("Code table is not in canonical order");
+            }
+            code <<= codeLength - previousLength;
+            if (code >= (1L << codeLength)) {
+                throw new IOException("Code lengths do not form a prefix code");
+            }
+
+            colors[i] = color;
+            codes[i] = code;
+            codeLengths[i] = codeLength;
+
+            code++;
+            previousLength = codeLength;
+        }
+
+        return new HuffmanDecoder(colors, codes, codeLengths);
+    }
+
+    private static int readCodeTableSize(BitInputStream bis) throws IOException {
+        int treeSize = bis.readBits(32);
+        if (treeSize < 0 || treeSize > MAX_PALETTE_SIZE) {
+            throw new IOException("Invalid code table size: " + treeSize);
+        }
+        return treeSize;
+    }
+
+    // v1: RGB, code length and the explicit code bits per entry
+    private HuffmanDecoder readExplicitCodeTable(BitInputStream bis) throws IOException {
+        int treeSize = readCodeTableSize(bis);
+        int capacity = Math.min(treeSize, INITIAL_PALETTE_CAPACITY);
+        int[] colors = new int[capacity];
+        long[] codes = new long[capacity];
+        int[] codeLengths = new int[capacity];
+        for (int i = 0; i < treeSize; i++) {
+            int color = bis.readBits(24);
+
+            int codeLength = (short) bis.readBits(16);
+            int codeLengthBytes = (codeLength + 7) / 8;
+
+            long code = 0;
+            for (int j = 0; j < codeLengthBytes; j++) {
+                code = (code << 8) | bis.readBits(8);
+            }
+            if (bis.isPastEnd()) {
+                throw new EOFException("Compressed data ends inside the code table");
+            }
+            if (i == colors.length) {
+                capacity = (int) Math.min(treeSize, 2L * capacity);
+                colors = Arrays.copyOf(colors, capacity);
+                codes = Arrays.copyOf(codes, capacity);
+                codeLengths = Arrays.copyOf(codeLengths, capacity);
+            }
+
+            colors[i] = color;
+            codes[i] = code >>> (codeLengthBytes * 8 - codeLength);
+            codeLengths[i] = codeLength;
+        }
+
+        return new HuffmanDecoder(colors, codes, codeLengths);
+    }
+
+    private void decompressQuadTree(DecodeWindow window, int xStart, int yStart, int width, int height, HuffmanDecoder decoder, BitInputStream bis)
+        throws IOException {
+        if (!window.overlaps(xStart, yStart, width, height)) {
+            skipQuadTree(decoder, bis);
+            return;
+        }
+
+        int color = decoder.decode(bis);
+
+        if (color == HuffmanDecoder.SPLIT) {
+            int halfWidth = width / 2;
+            int halfHeight = height / 2;
+
+            decompressQuadTree(window, xStart, yStart, halfWidth, halfHeight, decoder, bis);
+            decompressQuadTree(window, xStart + halfWidth, yStart, width - halfWidth, halfHeight, decoder, bis);
+            decompressQuadTree(window, xStart, yStart + halfHeight, halfWidth, height - halfHeight, decoder, bis);
+            decompressQuadTree(window, xStart + halfWidth, yStart + halfHeight, width - halfWidth, height - halfHeight, decoder, bis);
+        } else {
+            window.fill(xStart, yStart, width, height, color);
+        }
+    }
+
+    // Consumes a subtree without painting it: every split adds four pending nodes
+    private void skipQuadTree(HuffmanDecoder decoder, BitInputStream bis) throws IOException {
+        int pending = 1;
+        while (pending > 0) {
+            if (decoder.decode(bis) == HuffmanDecoder.SPLIT) {
+                pending += 3;
+                if (pending > MAX_PENDING_NODES) {
+                    throw new IOException("Quadtree is deeper than any image");
                 }
+            } else {
+                pending--;
             }
         }
-        
-        return preprocessedPixels;
     }
 
-    private Color averageColor(int[][][] preprocessedPixels, int xStart, int yStart, int width, int height) {
-        if (width == 0 || height == 0) {
-            return new Color(0, 0, 0);
+    // Decodes the levels above the index in order, then the indexed subtrees in parallel
+    private void decompressIndexed(DecodeWindow window, int xStart, int yStart, int width, int height, HuffmanDecoder decoder,
+        ByteBuffer payload, int indexDepth, long[] subtreeEnds) throws IOException {
+        List<SubtreeDecodeTask> tasks = new ArrayList<SubtreeDecodeTask>();
+        walkIndex(window, xStart, yStart, width, height, 0, indexDepth, decoder, payload, 0, subtreeEnds, tasks);
+        if (tasks.size() != subtreeEnds.length) {
+            throw new IOException("Subtree index does not match the quadtree");
         }
 
-        int xEnd = xStart + width - 1;
-        int yEnd = yStart + height - 1;
-    
-        int totalRed = preprocessedPixels[xEnd][yEnd][0];
-        int totalGreen = preprocessedPixels[xEnd][yEnd][1];
-        int totalBlue = preprocessedPixels[xEnd][yEnd][2];
-    
-        if (xStart > 0) {
-            totalRed -= preprocessedPixels[xStart - 1][yEnd][0];
-            totalGreen -= preprocessedPixels[xStart - 1][yEnd][1];
-            totalBlue -= preprocessedPixels[xStart - 1][yEnd][2];
+        for (SubtreeDecodeTask task : tasks) {
+            POOL.execute(task);
         }
-    
-        if (yStart > 0) {
-            totalRed -= preprocessedPixels[xEnd][yStart - 1][0];
-            totalGreen -= preprocessedPixels[xEnd][yStart - 1][1];
-            totalBlue -= preprocessedPixels[xEnd][yStart - 1][2];
+        try {
+            for (SubtreeDecodeTask task : tasks) {
+                task.join();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-    
-        if (xStart > 0 && yStart > 0) {
-            totalRed += preprocessedPixels[xStart - 1][yStart - 1][0];
-            totalGreen += preprocessedPixels[xStart - 1][yStart - 1][1];
-            totalBlue += preprocessedPixels[xStart - 1][yStart - 1][2];
+    }
+
+    // Returns the bit offset just past the node starting at offset
+    private long walkIndex(DecodeWindow window, int xStart, int yStart, int width, int height, int depth, int indexDepth,
+        HuffmanDecoder decoder, ByteBuffer payload, long offset, long[] subtreeEnds, List<SubtreeDecodeTask> tasks) throws IOException {
+        if (depth == indexDepth) {
+            if (tasks.size() == subtreeEnds.length) {
+                throw new IOException("Subtree index does not match the quadtree");
+            }
+            tasks.add(new SubtreeDecodeTask(window, xStart, yStart, width, height, decoder, payload, offset));
+            return subtreeEnds[tasks.size() - 1];
         }
-    
-        int count = width * height;
-    
+
+        BitInputStream bis = bitReaderAt(payload, offset);
+        int color = decoder.decode(bis);
+        offset = (offset & ~7L) + bis.getBitPosition();
+
+        if (color != HuffmanDecoder.SPLIT) {
+            window.fill(xStart, yStart, width, height, color);
+            return offset;
+        }
+
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+
+        offset = walkIndex(window, xStart, yStart, halfWidth, halfHeight, depth + 1, indexDepth, decoder, payload, offset, subtreeEnds, tasks);
+        offset = walkIndex(window, xStart + halfWidth, yStart, width - halfWidth, halfHeight, depth + 1, indexDepth, decoder, payload, offset, subtreeEnds, tasks);
+        offset = walkIndex(window, xStart, yStart + halfHeight, halfWidth, height - halfHeight, depth + 1, indexDepth, decoder, payload, offset, subtreeEnds, tasks);
+        return walkIndex(window, xStart + halfWidth, yStart + halfHeight, width - halfWidth, height - halfHeight, depth + 1, indexDepth, decoder, payload, offset, subtreeEnds, tasks);
+    }
+
+    private static BitInputStream bitReaderAt(ByteBuffer payload, long bitOffset) throws IOException {
+        if (bitOffset < 0 || (bitOffset >>> 3) > payload.limit()) {
+            throw new IOException("Subtree offset out of range: " + bitOffset);
+        }
+
+        ByteBuffer view = payload.duplicate();
+        view.position((int) (bitOffset >>> 3));
+        BitInputStream bis = new BitInputStream(view);
+        bis.readBits((int) (bitOffset & 7));
+        return bis;
+    }
+
+    // Decodes one indexed subtree with its own reader, into a region no other task touches
+    class SubtreeDecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final DecodeWindow window;
+        private final int xStart, yStart, width, height;
+        private final HuffmanDecoder decoder;
+        private final ByteBuffer payload;
+        private final long offset;
+
+        public SubtreeDecodeTask(DecodeWindow window, int xStart, int yStart, int width, int height, HuffmanDecoder decoder,
+            ByteBuffer payload, long offset) {
+            this.window = window;
+            this.xStart = xStart;
+            this.yStart = yStart;
+            this.width = width;
+            this.height = height;
+            this.decoder = decoder;
+            this.payload = payload;
+            this.offset = offset;
+        }
+
+        @Override
+        protected void compute() {
+            // Subtrees outside the window are never read
+            if (!window.overlaps(xStart, yStart, width, height)) {
+                return;
+            }
+            try {
+                decompressQuadTree(window, xStart, yStart, width, height, decoder, bitReaderAt(payload, offset));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private int averageColor(SummedAreaTable summedAreaTable, int xStart, int yStart, int width, int height) {
+        if (width == 0 || height == 0) {
+            return 0;
+        }
+
+        long totalRed = summedAreaTable.sum(SummedAreaTable.RED, xStart, yStart, width, height);
+        long totalGreen = summedAreaTable.sum(SummedAreaTable.GREEN, xStart, yStart, width, height);
+        long totalBlue = summedAreaTable.sum(SummedAreaTable.BLUE, xStart, yStart, width, height);
+
+        return averageColor(totalRed, totalGreen, totalBlue, (long) width * height);
+    }
+
+    // Mean color of count pixels with the given channel totals; shared with
+    // VariancePyramid so both builders pick the same leaf colors
+    static int averageColor(long totalRed, long totalGreen, long totalBlue, long count) {
+        if (count == 0) {
+            return 0;
+        }
+
         // Compute the average values for each channel
-        int averageRed = totalRed / count;
-        int averageGreen = totalGreen / count;
-        int averageBlue = totalBlue / count;
+        int averageRed = (int) (totalRed / count);
+        int averageGreen = (int) (totalGreen / count);
+        int averageBlue = (int) (totalBlue / count);
     
         // Ensure the values are within the valid range [0, 255]
         int clampedRed = Math.min(255, Math.max(0, averageRed));
         int clampedGreen = Math.min(255, Math.max(0, averageGreen));
         int clampedBlue = Math.min(255, Math.max(0, averageBlue));
     
-        return new Color(clampedRed, clampedGreen, clampedBlue);
+        return (clampedRed << 16) | (clampedGreen << 8) | clampedBlue;
     }
 
-    private QuadNode buildQuadtreeWrapper(int[][][] pixels, int[][][] preproccessedPixels, double maxLoss, int minDepth, int maxDepth, HuffmanCoding hc)
-        throws InterruptedException, ExecutionException {
+    Quadtree buildQuadtreeWrapper(PixelBuffer pixels, SummedAreaTable summedAreaTable, SplitCriterion criterion, double maxLoss, int minDepth, int maxDepth, HuffmanCoding hc) {
+        return buildQuadtreeWrapper(pixels, summedAreaTable, criterion, maxLoss, PASS_RATIO, minDepth, maxDepth, hc);
+    }
 
-        int xStart = 0;
-        int yStart = 0;
-        int width = pixels.length;
-        int height = pixels[0].length;
+    // SplitCriterion.VARIANCE needs a table built with squares
+    Quadtree buildQuadtreeWrapper(PixelBuffer pixels, SummedAreaTable summedAreaTable, SplitCriterion criterion, double maxLoss, double passRatio, int minDepth, int maxDepth, HuffmanCoding hc) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
 
-        // int numCores = Runtime.getRuntime().availableProcessors();
-        ExecutorService executor = Executors.newFixedThreadPool(1000);
+        QuadtreeTask task = new QuadtreeTask(pixels, summedAreaTable, criterion, 0, 0, width, height, maxLoss, passRatio, minDepth, maxDepth, 1); // start at depth 1
+        Quadtree tree = POOL.invoke(task);
+        tree.countColors(hc.frequencies);
 
-        // ExecutorService executor = Executors.newCachedThreadPool();;
+        return tree;
+    }
 
-        QuadNode root = buildQuadtree(pixels, preproccessedPixels, xStart, yStart, width, height, maxLoss, minDepth, maxDepth, executor, 1, hc); // start at depth 1
+    // Same tree as buildQuadtreeWrapper under SplitCriterion.VARIANCE, assembled
+    // from the leaf decisions the pyramid already made instead of from the pixels
+    Quadtree buildQuadtreeFromPyramid(VariancePyramid pyramid, HuffmanCoding hc) {
+        Quadtree tree = new Quadtree();
+        assembleQuadtree(pyramid, 0, 0, 0, tree);
+        tree.countColors(hc.frequencies);
+        return tree;
+    }
 
-        executor.shutdown();
-        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+    private void assembleQuadtree(VariancePyramid pyramid, int level, int column, int row, Quadtree tree) {
+        if (pyramid.isLeaf(level, column, row)) {
+            tree.addLeaf(pyramid.getColor(level, column, row));
+            return;
+        }
 
-        return root;
+        // Children in the order buildQuadtree visits them: top-left, top-right, bottom-left, bottom-right
+        tree.addSplit();
+        for (int i = 0; i < 4; i++) {
+            assembleQuadtree(pyramid, level + 1, 2 * column + (i & 1), 2 * row + (i >> 1), tree);
+        }
     }
 
-    private static final int MAX_CONCURRENT_DEPTH = 0; // Adjust as needed
+    // One pool for every compression, sized to the machine instead of per image
+    static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // Regions at least this many pixels build their four children as separate tasks;
+    // smaller ones recurse inline because the task overhead would outweigh the work
+    private static final long PARALLEL_AREA_THRESHOLD = 128 * 128;
+
+    class QuadtreeTask extends RecursiveTask<Quadtree> {
+        private static final long serialVersionUID = 1L;
+
+        private final PixelBuffer pixels;
+        private final SummedAreaTable summedAreaTable;
+        private final SplitCriterion criterion;
+        private final int xStart, yStart, width, height;
+        private final double lossThreshold, passRatio;
+        private final int minDepth, maxDepth, currentDepth;
+
+        public QuadtreeTask(PixelBuffer pixels, SummedAreaTable summedAreaTable, SplitCriterion criterion, int xStart, int yStart, int width, int height,
+            double lossThreshold, double passRatio, int minDepth, int maxDepth, int currentDepth) {
+            this.pixels = pixels;
+            this.summedAreaTable = summedAreaTable;
+            this.criterion = criterion;
+            this.xStart = xStart;
+            this.yStart = yStart;
+            this.width = width;
+            this.height = height;
+            this.lossThreshold = lossThreshold;
+            this.passRatio = passRatio;
+            this.minDepth = minDepth;
+            this.maxDepth = maxDepth;
+            this.currentDepth = currentDepth;
+        }
 
-    private void traverseQuadTree(QuadNode node, Map<Color, String> huffmanCodes, StringBuilder sb) {
-        if (node.isLeaf) {
-            String huffmanCode = huffmanCodes.get(node.color);
-            sb.append("1" + huffmanCode);
-            return;
+        @Override
+        protected Quadtree compute() {
+            Quadtree tree = new Quadtree();
+            buildQuadtree(pixels, summedAreaTable, criterion, xStart, yStart, width, height, lossThreshold, passRatio, minDepth, maxDepth, currentDepth, tree);
+            return tree;
         }
+    }
 
-        sb.append("0");
-        for (int i = 0; i < 4; i++) {
-            traverseQuadTree(node.children[i], huffmanCodes, sb);
+    // The tree is recorded in bitstream order: 0 for each split, 1 and the color's
+    // code for each leaf. Runs of splits between leaves go out as one write.
+    private void traverseQuadTree(Quadtree tree, ColorMap huffmanCodes, BitOutputStream bos) throws IOException {
+        int leaf = 0;
+        for (int base = 0; base < tree.size(); base += 64) {
+            long leaves = tree.leafWord(base >>> 6);
+            int next = base;
+            while (leaves != 0) {
+                int node = base + Long.numberOfTrailingZeros(leaves);
+                leaves &= leaves - 1;
+                bos.writeBits(0, node - next);
+
+                int huffmanCode = huffmanCodes.get(tree.getLeafColor(leaf++), 0);
+                int length = huffmanCode & 0x1F;
+                bos.writeBits((1L << length) | (huffmanCode >>> 5), length + 1);
+                next = node + 1;
+            }
+            bos.writeBits(0, Math.min(base + 64, tree.size()) - next);
         }
     }
 
-    private QuadNode buildQuadtree(int[][][] pixels, int[][][] preproccessedPixels, int xStart, int yStart, int width, int height,
-        double lossThreshold, int minDepth, int maxDepth, ExecutorService executor, int currentDepth, HuffmanCoding hc)
-        throws InterruptedException, ExecutionException {
+    // Records the bit offset just past each subtree at indexDepth, in pre-order.
+    // remaining[d] counts the children still to come of the open split at depth
+    // d, so a subtree is complete when its own count runs out.
+    private void indexSubtrees(Quadtree tree, ColorMap huffmanCodes, int indexDepth, List<Long> subtreeEnds) {
+        int[] remaining = new int[MAX_DEPTH + 1];
+        int depth = 0;
+        int leaf = 0;
+        long offset = 0;
+
+        for (int node = 0; node < tree.size(); node++) {
+            if (!tree.isLeaf(node)) {
+                offset++;
+                if (depth == remaining.length) {
+                    remaining = Arrays.copyOf(remaining, depth * 2);
+                }
+                remaining[depth++] = 4;
+                continue;
+            }
+
+            offset += 1 + (huffmanCodes.get(tree.getLeafColor(leaf++), 0) & 0x1F);
+            if (depth == indexDepth) {
+                subtreeEnds.add(offset);
+            }
+            // Close every split this leaf was the last child of
+            while (depth > 0 && --remaining[depth - 1] == 0) {
+                depth--;
+                if (depth == indexDepth) {
+                    subtreeEnds.add(offset);
+                }
+            }
+        }
+    }
+
+    // Appends the subtree for the region to tree in pre-order
+    private void buildQuadtree(PixelBuffer pixels, SummedAreaTable summedAreaTable, SplitCriterion criterion, int xStart, int yStart, int width, int height,
+        double lossThreshold, double passRatio, int minDepth, int maxDepth, int currentDepth, Quadtree tree) {
 
         if (currentDepth >= minDepth) {
-            Color avgColor = averageColor(preproccessedPixels, xStart, yStart, width, height);
+            int avgColor = averageColor(summedAreaTable, xStart, yStart, width, height);
 
-            if ((currentDepth >= maxDepth || isCloseEnough(pixels, xStart, yStart, width, height, avgColor, lossThreshold))) {
-                hc.frequencies.put(avgColor, hc.frequencies.getOrDefault(avgColor, 0) + 1);
-                return new QuadNode(xStart, yStart, width, height, avgColor, true);
+            if (currentDepth >= maxDepth || isUniform(pixels, summedAreaTable, criterion, xStart, yStart, width, height, avgColor, lossThreshold, passRatio)) {
+                tree.addLeaf(avgColor);
+                return;
             }
         }
 
         int halfWidth = width / 2;
         int halfHeight = height / 2;
 
-        QuadNode node = new QuadNode(xStart, yStart, width, height, null, false);
+        tree.addSplit();
 
         int[][] offsets = {
                 { 0, 0 }, { halfWidth, 0 }, { 0, halfHeight }, { halfWidth, halfHeight }
         };
 
-        if (currentDepth <= MAX_CONCURRENT_DEPTH) {
-            Future<QuadNode>[] futures = new Future[4];
+        if ((long) width * height >= PARALLEL_AREA_THRESHOLD) {
+            QuadtreeTask[] tasks = new QuadtreeTask[4];
             for (int i = 0; i < 4; i++) {
                 int xOff = offsets[i][0];
                 int yOff = offsets[i][1];
                 int w = (i % 2 == 0) ? halfWidth : width - halfWidth;
                 int h = (i < 2) ? halfHeight : height - halfHeight;
-                futures[i] = executor.submit(() -> buildQuadtree(pixels, preproccessedPixels, xStart + xOff, yStart + yOff, w, h, lossThreshold, 
-                            minDepth, maxDepth, executor, currentDepth + 1, hc));
+                tasks[i] = new QuadtreeTask(pixels, summedAreaTable, criterion, xStart + xOff, yStart + yOff, w, h, lossThreshold,
+                    passRatio, minDepth, maxDepth, currentDepth + 1);
             }
 
+            ForkJoinTask.invokeAll(tasks);
             for (int i = 0; i < 4; i++) {
-                node.children[i] = futures[i].get();
+                tree.append(tasks[i].join());
             }
         } else {
             for (int i = 0; i < 4; i++) {
@@ -526,30 +1193,137 @@ public class Utility {
                 int yOff = offsets[i][1];
                 int w = (i % 2 == 0) ? halfWidth : width - halfWidth;
                 int h = (i < 2) ? halfHeight : height - halfHeight;
-                node.children[i] = buildQuadtree(pixels, preproccessedPixels, xStart + xOff, yStart + yOff, w, h, lossThreshold,
-                    minDepth, maxDepth, executor, currentDepth + 1, hc);
+                buildQuadtree(pixels, summedAreaTable, criterion, xStart + xOff, yStart + yOff, w, h, lossThreshold,
+                    passRatio, minDepth, maxDepth, currentDepth + 1, tree);
 
             }
         }
+    }
 
-        return node;
+    private boolean isUniform(PixelBuffer pixels, SummedAreaTable summedAreaTable, SplitCriterion criterion,
+            int xStart, int yStart, int width, int height, int avgColor, double lossThreshold, double passRatio) {
+        if (criterion == SplitCriterion.VARIANCE) {
+            return isLowVariance(summedAreaTable, xStart, yStart, width, height, lossThreshold);
+        }
+        return isCloseEnough(pixels, xStart, yStart, width, height, avgColor, lossThreshold, passRatio);
     }
 
-    private boolean isCloseEnough(int[][][] pixels, int xStart, int yStart, int width, int height, Color avgColor,
+    private boolean isLowVariance(SummedAreaTable summedAreaTable, int xStart, int yStart, int width, int height,
             double lossThreshold) {
-        int count = 0;
-        for (int x = xStart; x < Math.min(xStart + width, pixels.length); x++) {
-            for (int y = yStart; y < Math.min(yStart + height, pixels[0].length); y++) {
-                Color currentColor = new Color(pixels[x][y][0], pixels[x][y][1], pixels[x][y][2]);
-                double distance = Math.sqrt(
-                        Math.pow(currentColor.getRed() - avgColor.getRed(), 2) +
-                                Math.pow(currentColor.getGreen() - avgColor.getGreen(), 2) +
-                                Math.pow(currentColor.getBlue() - avgColor.getBlue(), 2));
-                if (distance <= lossThreshold * 255 / 100) {
-                    count++;
+        long count = (long) width * height;
+        if (count == 0) {
+            return true;
+        }
+
+        return isLowVariance(summedAreaTable.sum(SummedAreaTable.RED, xStart, yStart, width, height),
+            summedAreaTable.sum(SummedAreaTable.GREEN, xStart, yStart, width, height),
+            summedAreaTable.sum(SummedAreaTable.BLUE, xStart, yStart, width, height),
+            summedAreaTable.sumOfSquares(xStart, yStart, width, height), count, lossThreshold);
+    }
+
+    // Mean squared RGB distance to the region mean, from the sums and squared sums:
+    // sum((p - mean)^2) = sum(p^2) - sum(p)^2 / n, per channel
+    static boolean isLowVariance(double red, double green, double blue, double squares, long count,
+            double lossThreshold) {
+        if (count == 0) {
+            return true;
+        }
+
+        double squaredError = squares - (red * red + green * green + blue * blue) / count;
+        double limit = lossThreshold * 255 / 100;
+        return squaredError <= limit * limit * count;
+    }
+
+    // Share of a region's pixels that must lie within the loss threshold of its average,
+    // unless CompressionOptions says otherwise
+    static final double PASS_RATIO = 0.9;
+
+    boolean isCloseEnough(PixelBuffer pixels, int xStart, int yStart, int width, int height, int avgColor,
+            double lossThreshold) {
+        return isCloseEnough(pixels, xStart, yStart, width, height, avgColor, lossThreshold, PASS_RATIO);
+    }
+
+    // True if at least passRatio of the region lies within lossThreshold * 255 / 100 (Euclidean
+    // RGB distance) of avgColor. Compares squared integer distances and stops as soon as
+    // the outcome is decided.
+    boolean isCloseEnough(PixelBuffer pixels, int xStart, int yStart, int width, int height, int avgColor,
+            double lossThreshold, double passRatio) {
+        long total = (long) width * height;
+        if (total == 0) {
+            return false;
+        }
+
+        int limit = squaredDistanceLimit(lossThreshold * 255 / 100);
+        long required = requiredPasses(total, passRatio);
+
+        int xEnd = Math.min(xStart + width, pixels.getWidth());
+        int yEnd = Math.min(yStart + height, pixels.getHeight());
+
+        // Anything clipped off the image counts against the region
+        long allowedFailures = total - required;
+        long failed = total - (long) Math.max(0, xEnd - xStart) * Math.max(0, yEnd - yStart);
+        if (failed > allowedFailures) {
+            return false;
+        }
+
+        int avgRed = (avgColor >> 16) & 0xFF;
+        int avgGreen = (avgColor >> 8) & 0xFF;
+        int avgBlue = avgColor & 0xFF;
+
+        int[] rgb = pixels.getPixels();
+        int imageWidth = pixels.getWidth();
+        long passed = 0;
+
+        for (int y = yStart; y < yEnd; y++) {
+            int row = y * imageWidth;
+            for (int i = row + xStart; i < row + xEnd; i++) {
+                int pixel = rgb[i];
+                int dr = ((pixel >> 16) & 0xFF) - avgRed;
+                int dg = ((pixel >> 8) & 0xFF) - avgGreen;
+                int db = (pixel & 0xFF) - avgBlue;
+
+                if (dr * dr + dg * dg + db * db <= limit) {
+                    if (++passed >= required) {
+                        return true;
+                    }
+                } else if (++failed > allowedFailures) {
+                    return false;
                 }
             }
         }
-        return (double) count / (width * height) >= 0.9; // change this to say if 90% and above then good enough
+        return passed >= required;
+    }
+
+    // Largest squared distance d2 with Math.sqrt(d2) <= maxDistance, so the integer
+    // comparison accepts exactly the pixels the floating point distance test would
+    private static int squaredDistanceLimit(double maxDistance) {
+        int maxSquared = 3 * 255 * 255;
+        if (!(maxDistance >= 0)) {
+            return -1;
+        }
+        if (maxDistance >= Math.sqrt(maxSquared)) {
+            return maxSquared;
+        }
+
+        int limit = (int) (maxDistance * maxDistance);
+        while (limit < maxSquared && Math.sqrt(limit + 1) <= maxDistance) {
+            limit++;
+        }
+        while (limit >= 0 && Math.sqrt(limit) > maxDistance) {
+            limit--;
+        }
+        return limit;
+    }
+
+    // Smallest count with count / total >= passRatio, evaluated exactly as a double division
+    private static long requiredPasses(long total, double passRatio) {
+        long required = (long) Math.ceil(passRatio * total);
+        while (required > 0 && (double) (required - 1) / total >= passRatio) {
+            required--;
+        }
+        while ((double) required / total < passRatio) {
+            required++;
+        }
+        return required;
     }
 }
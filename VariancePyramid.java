@@ -0,0 +1,203 @@
+// Per-level region statistics for the quadtree, built bottom-up. One pass over
+// the image sums each finest-level region; every coarser level is the sum of
+// its four children, so no pixel is read twice. Each region keeps only its
+// mean color, the squared error of painting it that color, and whether
+// buildQuadtree would stop there under SplitCriterion.VARIANCE, so the tree can
+// be assembled, or pruned some other way (see RateControl), without the pixels.
+//
+// Level 0 is the whole image (depth 1). A region at level k splits exactly as
+// buildQuadtree splits it: the left/top half gets size / 2, the rest goes to the
+// right/bottom. The split along each axis does not depend on the other, so the
+// regions at level k form a grid of 2^k columns by 2^k rows.
+public class VariancePyramid {
+    // Pixels summed per task when the image is split across the pool
+    private static final int PIXELS_PER_TASK = 1 << 16;
+
+    private final int levels;
+    private final int[][] columnBounds, rowBounds;
+    private final int[][] colors;
+    private final long[][] errors;
+    private final boolean[][] leaves;
+
+    public VariancePyramid(PixelBuffer pixels, double lossThreshold, int minDepth, int maxDepth) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+
+        // Nothing splits at maxDepth, and nothing past minDepth splits once every
+        // region is at most one pixel, since such regions have no variance
+        int finestDepth = Math.max(minDepth, Math.min(maxDepth, 1 + levelsToSinglePixels(Math.max(width, height))));
+        if (finestDepth > Utility.MAX_TREE_DEPTH) {
+            throw new IllegalArgumentException("Pyramids are at most " + Utility.MAX_TREE_DEPTH + " levels deep: " + finestDepth);
+        }
+        this.levels = Math.max(1, finestDepth);
+
+        this.columnBounds = bounds(width, levels);
+        this.rowBounds = bounds(height, levels);
+        this.colors = new int[levels][];
+        this.errors = new long[levels][];
+        this.leaves = new boolean[levels][];
+
+        int side = 1 << (levels - 1);
+        long[] red = new long[side * side];
+        long[] green = new long[side * side];
+        long[] blue = new long[side * side];
+        long[] squares = new long[side * side];
+        sumFinestLevel(pixels, side, red, green, blue, squares);
+
+        for (int level = levels - 1; level >= 0; level--) {
+            decide(level, minDepth, maxDepth, lossThreshold, red, green, blue, squares);
+            if (level > 0) {
+                red = reduce(red, 1 << level);
+                green = reduce(green, 1 << level);
+                blue = reduce(blue, 1 << level);
+                squares = reduce(squares, 1 << level);
+            }
+        }
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public int getWidth(int level, int column) {
+        return columnBounds[level][column + 1] - columnBounds[level][column];
+    }
+
+    public int getHeight(int level, int row) {
+        return rowBounds[level][row + 1] - rowBounds[level][row];
+    }
+
+    // Mean color of the region, as averageColor computes it
+    public int getColor(int level, int column, int row) {
+        return colors[level][(row << level) + column];
+    }
+
+    // Squared error, summed over the pixels and channels, of filling the region
+    // with getColor; exactly what a leaf here adds to QualityMetrics' sum
+    public long getError(int level, int column, int row) {
+        return errors[level][(row << level) + column];
+    }
+
+    // True where buildQuadtree would make a leaf, ancestors aside
+    public boolean isLeaf(int level, int column, int row) {
+        return leaves[level][(row << level) + column];
+    }
+
+    // Sums each finest region in one pass. Tasks own whole rows of regions, so
+    // no two threads add into the same region.
+    private void sumFinestLevel(PixelBuffer pixels, int side, long[] red, long[] green, long[] blue, long[] squares) {
+        int[] rgb = pixels.getPixels();
+        int width = pixels.getWidth();
+        int[] columns = columnBounds[levels - 1];
+        int[] rows = rowBounds[levels - 1];
+
+        long pixelsPerRow = (long) width * Math.max(1, ceilDiv(pixels.getHeight(), side));
+        int grain = (int) Math.max(1, PIXELS_PER_TASK / Math.max(1, pixelsPerRow));
+        ParallelRange.forEach(0, side, grain, (from, to) -> {
+            for (int row = from; row < to; row++) {
+                for (int y = rows[row]; y < rows[row + 1]; y++) {
+                    int line = y * width;
+                    for (int column = 0; column < side; column++) {
+                        long r = 0, g = 0, b = 0, s = 0;
+                        for (int i = line + columns[column]; i < line + columns[column + 1]; i++) {
+                            int pixel = rgb[i];
+                            int pr = (pixel >> 16) & 0xFF;
+                            int pg = (pixel >> 8) & 0xFF;
+                            int pb = pixel & 0xFF;
+                            r += pr;
+                            g += pg;
+                            b += pb;
+                            s += pr * pr + pg * pg + pb * pb;
+                        }
+                        int cell = row * side + column;
+                        red[cell] += r;
+                        green[cell] += g;
+                        blue[cell] += b;
+                        squares[cell] += s;
+                    }
+                }
+            }
+        });
+    }
+
+    // Records the mean color, its error and the leaf decision for every region of a level
+    private void decide(int level, int minDepth, int maxDepth, double lossThreshold,
+            long[] red, long[] green, long[] blue, long[] squares) {
+        int side = 1 << level;
+        int depth = level + 1;
+        int[] levelColors = new int[side * side];
+        long[] levelErrors = new long[side * side];
+        boolean[] levelLeaves = new boolean[side * side];
+
+        for (int row = 0; row < side; row++) {
+            long height = getHeight(level, row);
+            for (int column = 0; column < side; column++) {
+                int cell = row * side + column;
+                long count = height * getWidth(level, column);
+                int color = Utility.averageColor(red[cell], green[cell], blue[cell], count);
+                levelColors[cell] = color;
+                levelErrors[cell] = squaredError(color, red[cell], green[cell], blue[cell], squares[cell], count);
+                levelLeaves[cell] = depth >= minDepth && (depth >= maxDepth
+                    || Utility.isLowVariance(red[cell], green[cell], blue[cell], squares[cell], count, lossThreshold));
+            }
+        }
+        colors[level] = levelColors;
+        errors[level] = levelErrors;
+        leaves[level] = levelLeaves;
+    }
+
+    // Sum of (p - c)^2 over the region for each channel, expanded so that only
+    // the region's sums are needed: sum(p^2) - 2c * sum(p) + count * c^2
+    private static long squaredError(int color, long red, long green, long blue, long squares, long count) {
+        long r = (color >> 16) & 0xFF;
+        long g = (color >> 8) & 0xFF;
+        long b = color & 0xFF;
+        return squares - 2 * (r * red + g * green + b * blue) + count * (r * r + g * g + b * b);
+    }
+
+    // Sums each 2x2 block of a side x side grid into one region of the level above
+    private static long[] reduce(long[] sums, int side) {
+        int half = side / 2;
+        long[] parent = new long[half * half];
+        for (int row = 0; row < half; row++) {
+            int top = 2 * row * side;
+            int bottom = top + side;
+            for (int column = 0; column < half; column++) {
+                int left = 2 * column;
+                parent[row * half + column] = sums[top + left] + sums[top + left + 1]
+                    + sums[bottom + left] + sums[bottom + left + 1];
+            }
+        }
+        return parent;
+    }
+
+    // Region edges along one axis for each level: level k has 2^k + 1 of them
+    private static int[][] bounds(int size, int levels) {
+        int[][] bounds = new int[levels][];
+        bounds[0] = new int[] { 0, size };
+        for (int level = 1; level < levels; level++) {
+            int[] parent = bounds[level - 1];
+            int[] child = new int[2 * (parent.length - 1) + 1];
+            for (int i = 0; i + 1 < parent.length; i++) {
+                child[2 * i] = parent[i];
+                child[2 * i + 1] = parent[i] + (parent[i + 1] - parent[i]) / 2;
+            }
+            child[child.length - 1] = size;
+            bounds[level] = child;
+        }
+        return bounds;
+    }
+
+    // Halvings until no region along an axis of this size is wider than one pixel
+    private static int levelsToSinglePixels(int size) {
+        int levels = 0;
+        while ((1L << levels) < size) {
+            levels++;
+        }
+        return levels;
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return -Math.floorDiv(-value, divisor);
+    }
+}
@@ -0,0 +1,47 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// isCloseEnough over every block of a 2048x2048 photo: the allocation-free
+// kernel against the per-pixel Color scan it replaced. Setup checks that both
+// give the same answer for every block. With -prof gc the legacy scan shows
+// its Color allocation per pixel.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx2g")
+public class CloseEnoughBenchmark {
+    @Param({ "legacy", "kernel" })
+    public String implementation;
+
+    @Param({ "16", "64", "256", "1024" })
+    public int regionSize;
+
+    private LongSupplier workload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = Workloads.get("closeEnough", implementation, regionSize);
+    }
+
+    @Benchmark
+    public long isCloseEnough() {
+        return workload.getAsLong();
+    }
+}
@@ -0,0 +1,148 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+// Every pipeline stage on a square synthetic image. Each method runs the
+// BenchmarkWorkloads.pipeline workload of the same name, set up once per trial.
+// Run with -prof gc for allocation per operation, e.g.
+//   java -jar target/benchmarks.jar PipelineBenchmark.compress -p size=2048 -prof gc
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx4g")
+public class PipelineBenchmark {
+    @Param({ "flat", "gradient", "noise", "photo" })
+    public String kind;
+
+    @Param({ "512", "2048" })
+    public int size;
+
+    private LongSupplier workload;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkParams params) {
+        workload = Workloads.get("pipeline", Workloads.methodName(params.getBenchmark()), kind, size);
+    }
+
+    @Benchmark
+    public long summedAreaTable() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long buildQuadtree() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long buildQuadtreeVariance() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long buildQuadtreePyramid() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long huffman() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long compress() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long compressFast() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long compressBalanced() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long compressSmallest() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long compressPsnr32() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long compressHalfSize() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long decompress() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long decompressScaled8() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long decompressRegion() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long toImage() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long toPixelBuffer() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long mse() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long mae() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long psnr() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long qualityMetrics() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long qualityMetricsBuffer() {
+        return workload.getAsLong();
+    }
+}
@@ -0,0 +1,33 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.function.LongSupplier;
+
+// Looks up the workloads of the default-package BenchmarkWorkloads class. JMH
+// refuses benchmarks in the default package, and a named package cannot
+// reference it, so the workloads cross over by name as LongSuppliers.
+final class Workloads {
+    private Workloads() {
+    }
+
+    static LongSupplier get(String factory, Object... arguments) {
+        Class<?>[] types = new Class<?>[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            types[i] = arguments[i] instanceof Integer ? int.class : arguments[i].getClass();
+        }
+        try {
+            Method method = Class.forName("BenchmarkWorkloads").getMethod(factory, types);
+            return (LongSupplier) method.invoke(null, arguments);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Cannot set up " + factory, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkWorkloads." + factory + " is missing", e);
+        }
+    }
+
+    // The benchmark method's own name, which is also its workload's name
+    static String methodName(String benchmark) {
+        return benchmark.substring(benchmark.lastIndexOf('.') + 1);
+    }
+}
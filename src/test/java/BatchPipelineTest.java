@@ -0,0 +1,57 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class BatchPipelineTest {
+    private static List<File> files(String... names) {
+        List<File> files = new ArrayList<File>();
+        for (String name : names) {
+            files.add(new File(name));
+        }
+        return files;
+    }
+
+    private static List<String> names(List<BatchPipeline.Job> jobs) {
+        List<String> names = new ArrayList<String>();
+        for (BatchPipeline.Job job : jobs) {
+            names.add(job.getName());
+        }
+        names.sort(null);
+        return names;
+    }
+
+    @Test
+    void errorsSkipOnlyTheirImage() {
+        BatchPipeline pipeline = new BatchPipeline(2,
+            job -> {
+                if (job.getName().startsWith("huge")) {
+                    throw new OutOfMemoryError("Java heap space");
+                }
+            },
+            job -> {
+                if (job.getName().startsWith("deep")) {
+                    throw new StackOverflowError();
+                }
+            });
+
+        List<BatchPipeline.Job> done = assertTimeoutPreemptively(Duration.ofSeconds(30),
+            () -> pipeline.run(files("a.png", "huge.png", "b.png", "deep.png", "c.png", "huge2.png")));
+        assertEquals(List.of("a.png", "b.png", "c.png"), names(done));
+    }
+
+    @Test
+    void endsWhenEveryImageFails() {
+        BatchPipeline pipeline = new BatchPipeline(3, job -> {
+            throw new AssertionError("broken step");
+        });
+        List<BatchPipeline.Job> done = assertTimeoutPreemptively(Duration.ofSeconds(30),
+            () -> pipeline.run(files("a.png", "b.png", "c.png", "d.png", "e.png", "f.png", "g.png")));
+        assertEquals(0, done.size());
+    }
+}
@@ -0,0 +1,60 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class BitStreamTest {
+    @Test
+    void readsBackWhatWasWritten() throws IOException {
+        Random random = new Random(7);
+        int[] widths = new int[20000];
+        int[] values = new int[widths.length];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitOutputStream out = new BitOutputStream(bytes);
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = random.nextInt(33);
+            values[i] = widths[i] == 0 ? 0 : random.nextInt() >>> (32 - widths[i]);
+            out.writeBits(values[i], widths[i]);
+        }
+        out.flush();
+        byte[] data = bytes.toByteArray();
+
+        // The stream reader refills in chunks, the buffer reader in 8-byte loads
+        for (BitInputStream in : new BitInputStream[] { new BitInputStream(new ByteArrayInputStream(data)),
+                new BitInputStream(ByteBuffer.wrap(data)) }) {
+            long position = 0;
+            for (int i = 0; i < widths.length; i++) {
+                assertEquals(values[i], in.readBits(widths[i]), "value " + i);
+                position += widths[i];
+                assertEquals(position, in.getBitPosition());
+            }
+            assertFalse(in.isPastEnd());
+        }
+    }
+
+    @Test
+    void padsTheLastByteWithZeros() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitOutputStream out = new BitOutputStream(bytes);
+        out.writeBits(0b101, 3);
+        out.flush();
+        assertEquals(1, bytes.size());
+        assertEquals((byte) 0b10100000, bytes.toByteArray()[0]);
+    }
+
+    @Test
+    void readsZerosPastTheEnd() throws IOException {
+        BitInputStream in = new BitInputStream(ByteBuffer.wrap(new byte[] { (byte) 0xFF }));
+        assertEquals(0xFF, in.readBits(8));
+        assertFalse(in.isPastEnd());
+        assertEquals(0, in.readBits(16));
+        assertTrue(in.isPastEnd());
+    }
+}
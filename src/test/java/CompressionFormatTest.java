@@ -0,0 +1,253 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+// The v2 (canonical codes) and v3 (v2 plus subtree index) formats
+class CompressionFormatTest {
+    private final Utility utility = new Utility();
+
+    private byte[] compress(PixelBuffer pixels, int indexDepth) throws IOException {
+        return utility.compress(pixels, CompressionOptions.LEGACY.withIndexDepth(indexDepth));
+    }
+
+    private static boolean isIndexed(byte[] data) {
+        return ByteBuffer.wrap(data).getInt() == 0xC5201003;
+    }
+
+    // Large enough for an index of depth 2, 16 subtrees of 256x256
+    private static PixelBuffer indexedImage(long seed) {
+        return TestImages.photo(1024, 1024, seed);
+    }
+
+    @Test
+    void flatImagesDecodeExactly() throws IOException {
+        for (int indexDepth : new int[] { 0, 2 }) {
+            PixelBuffer pixels = TestImages.flat(93, 41, 0x3366CC);
+            assertArrayEquals(pixels.getPixels(), utility.decompress(compress(pixels, indexDepth)).getPixels());
+        }
+    }
+
+    @Test
+    void writesAV2HeaderAndCanonicalCodeTable() throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(compress(TestImages.photo(120, 90, 1), 0));
+        assertEquals(0xC5201002, data.getInt());
+        assertEquals(120, data.getInt());
+        assertEquals(90, data.getInt());
+        int paletteSize = data.getInt();
+        assertTrue(paletteSize > 1);
+        // Four bytes per color, code lengths never getting shorter
+        int previousLength = 0;
+        for (int i = 0; i < paletteSize; i++) {
+            int codeLength = data.getInt() & 0xFF;
+            assertTrue(codeLength >= previousLength && codeLength <= 24, "code length " + codeLength);
+            previousLength = codeLength;
+        }
+    }
+
+    @Test
+    void indexDoesNotChangeThePixels() throws IOException {
+        PixelBuffer pixels = indexedImage(1);
+        byte[] plain = compress(pixels, 0);
+        assertFalse(isIndexed(plain));
+        for (int indexDepth = 1; indexDepth <= Utility.MAX_INDEX_DEPTH; indexDepth++) {
+            byte[] indexed = compress(pixels, indexDepth);
+            assertTrue(isIndexed(indexed));
+            // 1 byte of depth, 4 of count and 4 per subtree; depths past 2 are capped
+            int subtrees = 1 << (2 * Math.min(indexDepth, 2));
+            assertEquals(plain.length + 5 + 4 * subtrees, indexed.length, "index depth " + indexDepth);
+            assertArrayEquals(utility.decompress(plain).getPixels(), utility.decompress(indexed).getPixels(),
+                "index depth " + indexDepth);
+        }
+    }
+
+    @Test
+    void smallImagesAreNotIndexed() throws IOException {
+        for (PixelBuffer pixels : new PixelBuffer[] { TestImages.flat(64, 64, 0x102030), TestImages.photo(511, 511, 9) }) {
+            byte[] data = compress(pixels, Utility.INDEX_DEPTH);
+            assertFalse(isIndexed(data));
+            assertArrayEquals(compress(pixels, 0), data);
+        }
+        assertEquals(0, CompressionOptions.LEGACY.indexDepth(255, 256));
+        assertEquals(1, CompressionOptions.LEGACY.indexDepth(512, 512));
+        assertEquals(2, CompressionOptions.LEGACY.indexDepth(4000, 3000));
+    }
+
+    @Test
+    void decodesTheSameFromEverySource() throws IOException {
+        for (int indexDepth : new int[] { 0, 3 }) {
+            byte[] data = compress(indexDepth > 0 ? indexedImage(2) : TestImages.photo(257, 129, 2), indexDepth);
+            PixelBuffer fromBytes = utility.decompress(data);
+
+            assertArrayEquals(fromBytes.getPixels(), utility.decompress(new ByteArrayInputStream(data)).getPixels());
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 5);
+            direct.put(new byte[5]).put(data).flip().position(5);
+            assertArrayEquals(fromBytes.getPixels(), utility.decompress(direct).getPixels());
+            assertEquals(5, direct.position());
+        }
+    }
+
+    @Test
+    void streamAndBufferWritersAgree() throws IOException {
+        PixelBuffer pixels = TestImages.photo(120, 90, 3);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        utility.compress(pixels, out, CompressionOptions.BALANCED);
+        assertArrayEquals(out.toByteArray(), utility.compress(pixels, CompressionOptions.BALANCED));
+        // Repeated compresses of the same pixels agree too
+        assertArrayEquals(out.toByteArray(), utility.compress(pixels, CompressionOptions.BALANCED));
+    }
+
+    @Test
+    void regionsAndPreviewsMatchTheFullDecode() throws IOException {
+        for (int indexDepth : new int[] { 0, 2 }) {
+            byte[] data = compress(indexedImage(4), indexDepth);
+            assertEquals(indexDepth > 0, isIndexed(data));
+            PixelBuffer full = utility.decompress(data);
+
+            int[][] regions = { { 0, 0, 1024, 1024 }, { 10, 20, 1, 1 }, { 200, 250, 120, 90 }, { 900, 700, 124, 324 } };
+            for (int[] r : regions) {
+                for (int factor : new int[] { 1, 3, 8 }) {
+                    PixelBuffer decoded = utility.decompress(ByteBuffer.wrap(data), r[0], r[1], r[2], r[3], factor);
+                    assertArrayEquals(TestImages.sample(full, r[0], r[1], r[2], r[3], factor).getPixels(),
+                        decoded.getPixels(), Arrays.toString(r) + " / " + factor);
+                }
+            }
+        }
+    }
+
+    @Test
+    void regionsAreClippedToTheImage() throws IOException {
+        byte[] data = compress(TestImages.photo(64, 48, 5), 0);
+        PixelBuffer full = utility.decompress(data);
+        PixelBuffer clipped = utility.decompress(ByteBuffer.wrap(data), 40, -10, 1000, 30, 1);
+        assertArrayEquals(TestImages.sample(full, 40, 0, 24, 20, 1).getPixels(), clipped.getPixels());
+
+        assertThrows(IllegalArgumentException.class, () -> utility.decompress(ByteBuffer.wrap(data), 64, 0, 10, 10, 1));
+        assertThrows(IllegalArgumentException.class, () -> utility.decompress(ByteBuffer.wrap(data), 0, 0, 10, 10, 0));
+    }
+
+    @Test
+    void truncatedDataIsRejected() throws IOException {
+        for (int indexDepth : new int[] { 0, 2 }) {
+            byte[] data = compress(indexDepth > 0 ? indexedImage(6) : TestImages.photo(200, 100, 6), indexDepth);
+            for (int length : new int[] { 0, 3, 11, 16, 40, data.length - 30, data.length / 2 }) {
+                byte[] truncated = Arrays.copyOf(data, length);
+                assertThrows(IOException.class, () -> utility.decompress(truncated), "length " + length);
+                assertThrows(IOException.class, () -> utility.decompress(new ByteArrayInputStream(truncated)),
+                    "stream, length " + length);
+            }
+        }
+    }
+
+    // A v2 header with no code table or bitstream after it
+    private static byte[] header(int width, int height, int paletteSize) {
+        return ByteBuffer.allocate(16).putInt(0xC5201002).putInt(width).putInt(height).putInt(paletteSize).array();
+    }
+
+    @Test
+    void headersCannotClaimMoreThanCanBeDecoded() throws IOException {
+        // Too many pixels for any array, or a product that overflows an int
+        for (int[] size : new int[][] { { 60000, 60000 }, { Integer.MAX_VALUE, Integer.MAX_VALUE }, { -1, 10 } }) {
+            byte[] data = header(size[0], size[1], 0);
+            IOException e = assertThrows(IOException.class, () -> utility.decompress(data));
+            assertFalse(e instanceof java.io.EOFException, e.getMessage());
+        }
+        // The size alone can still be read, so callers can decide for themselves
+        assertEquals(new java.awt.Dimension(60000, 60000), utility.readDimensions(ByteBuffer.wrap(header(60000, 60000, 0))));
+        assertThrows(IOException.class, () -> utility.readDimensions(ByteBuffer.wrap(header(-5, 5, 0))));
+    }
+
+    @Test
+    void codeTablesCannotClaimMoreThanTheDataHolds() {
+        // Sizes past 2^24 are rejected outright; smaller ones fail once the data runs out
+        for (int paletteSize : new int[] { -1, (1 << 24) + 1, 1 << 24, 1 << 20 }) {
+            byte[] data = header(16, 16, paletteSize);
+            assertThrows(IOException.class, () -> utility.decompress(data), "size " + paletteSize);
+            assertThrows(IOException.class, () -> utility.decompress(new ByteArrayInputStream(data)), "size " + paletteSize);
+        }
+    }
+
+    @Test
+    void filesMatchTheInMemoryEncoding() throws IOException {
+        PixelBuffer pixels = TestImages.photo(77, 66, 7);
+        java.io.File file = java.io.File.createTempFile("format", ".bin");
+        try {
+            utility.Compress(pixels, file.getPath());
+            assertArrayEquals(utility.compress(pixels), java.nio.file.Files.readAllBytes(file.toPath()));
+            assertArrayEquals(utility.decompress(utility.compress(pixels)).getPixels(),
+                utility.decompressBuffer(file.getPath()).getPixels());
+        } finally {
+            file.delete();
+        }
+    }
+
+    // Bits packed MSB-first and zero-padded to whole bytes, as the v1 writer did
+    private static byte[] packBits(String bits) {
+        byte[] bytes = new byte[(bits.length() + 7) / 8];
+        for (int i = 0; i < bits.length(); i++) {
+            if (bits.charAt(i) == '1') {
+                bytes[i / 8] |= 0x80 >>> (i % 8);
+            }
+        }
+        return bytes;
+    }
+
+    @Test
+    void v1FilesStillDecode() throws IOException {
+        int red = 0xFF0000, green = 0x00FF00, blue = 0x0000FF;
+        String redCode = "0", greenCode = "10", blueCode = "11";
+
+        // No magic: width, height and the palette size, then each color with
+        // a short code length and its code bits padded to a byte
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        java.io.DataOutputStream out = new java.io.DataOutputStream(bytes);
+        out.writeInt(6);
+        out.writeInt(5);
+        out.writeInt(3);
+        for (Object[] entry : new Object[][] { { red, redCode }, { green, greenCode }, { blue, blueCode } }) {
+            int color = (Integer) entry[0];
+            String code = (String) entry[1];
+            out.writeByte(color >> 16);
+            out.writeByte(color >> 8);
+            out.writeByte(color);
+            out.writeShort(code.length());
+            out.write(packBits(code));
+        }
+        // Leaves are 1 and a code, splits 0 and four children: the top-right
+        // quadrant is split again, the others are single colors
+        String tree = "0" + "1" + redCode
+            + "0" + "1" + greenCode + "1" + redCode + "1" + blueCode + "1" + greenCode
+            + "1" + blueCode + "1" + redCode;
+        out.write(packBits(tree));
+        byte[] data = bytes.toByteArray();
+
+        // Odd sizes put the extra row and column in the second half
+        PixelBuffer expected = new PixelBuffer(6, 5);
+        expected.fill(0, 0, 3, 2, red);
+        expected.fill(3, 0, 1, 1, green);
+        expected.fill(4, 0, 2, 1, red);
+        expected.fill(3, 1, 1, 1, blue);
+        expected.fill(4, 1, 2, 1, green);
+        expected.fill(0, 2, 3, 3, blue);
+        expected.fill(3, 2, 3, 3, red);
+
+        assertArrayEquals(expected.getPixels(), utility.decompress(data).getPixels());
+        assertArrayEquals(expected.getPixels(), utility.decompress(new ByteArrayInputStream(data)).getPixels());
+        java.io.File file = java.io.File.createTempFile("format", ".bin");
+        try {
+            java.nio.file.Files.write(file.toPath(), data);
+            assertArrayEquals(expected.getPixels(), utility.decompressBuffer(file.getPath()).getPixels());
+        } finally {
+            file.delete();
+        }
+    }
+}
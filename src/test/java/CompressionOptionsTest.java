@@ -0,0 +1,72 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+class CompressionOptionsTest {
+    @Test
+    void legacyIsTheDefault() throws IOException {
+        Utility utility = new Utility();
+        PixelBuffer pixels = TestImages.photo(150, 100, 41);
+        assertArrayEquals(utility.compress(pixels), utility.compress(pixels, CompressionOptions.LEGACY));
+    }
+
+    @Test
+    void presetsByName() {
+        assertSame(CompressionOptions.FAST, CompressionOptions.forName("fast"));
+        assertSame(CompressionOptions.BALANCED, CompressionOptions.forName("Balanced"));
+        assertSame(CompressionOptions.SMALLEST, CompressionOptions.forName("SMALLEST"));
+        assertSame(CompressionOptions.LEGACY, CompressionOptions.forName("legacy"));
+        assertThrows(IllegalArgumentException.class, () -> CompressionOptions.forName("best"));
+    }
+
+    @Test
+    void depthsFollowTheBlockSizes() {
+        CompressionOptions options = new CompressionOptions(8, 64, 20, 0.9, SplitCriterion.PASS_RATIO, 0);
+        // 1024 pixels: split to 64-pixel blocks at depth 5, never below 8 at depth 8
+        assertEquals(5, options.minDepth(1024, 1024));
+        assertEquals(8, options.maxDepth(1024, 1024));
+        assertEquals(Utility.MIN_DEPTH, CompressionOptions.LEGACY.minDepth(1024, 1024));
+        assertEquals(Utility.MAX_DEPTH, CompressionOptions.LEGACY.maxDepth(5, 5));
+        // Images too wide for single-pixel blocks stop at the deepest tree allowed
+        CompressionOptions finest = new CompressionOptions(1, 64, 20, 0.9, SplitCriterion.VARIANCE, 0);
+        assertEquals(Utility.MAX_TREE_DEPTH, finest.maxDepth(32768, 1));
+        assertEquals(Utility.MAX_TREE_DEPTH, finest.maxDepth(1 << 30, 1));
+    }
+
+    @Test
+    void targetsReplaceEachOther() {
+        CompressionOptions psnr = CompressionOptions.BALANCED.withTargetPsnr(35);
+        assertTrue(psnr.hasTarget());
+        assertEquals(35, psnr.getTargetPsnr());
+
+        CompressionOptions size = psnr.withMaxBytes(1000);
+        assertEquals(0, size.getTargetPsnr());
+        assertEquals(1000, size.getMaxBytes());
+        assertFalse(CompressionOptions.BALANCED.hasTarget());
+    }
+
+    @Test
+    void rejectsBadSettings() {
+        assertThrows(IllegalArgumentException.class,
+            () -> new CompressionOptions(0, 64, 20, 0.9, SplitCriterion.PASS_RATIO, 0));
+        assertThrows(IllegalArgumentException.class,
+            () -> new CompressionOptions(64, 8, 20, 0.9, SplitCriterion.PASS_RATIO, 0));
+        assertThrows(IllegalArgumentException.class, () -> CompressionOptions.forDepths(6, Utility.MAX_TREE_DEPTH + 1, 20, 0.9,
+            SplitCriterion.VARIANCE, 0));
+        assertThrows(IllegalArgumentException.class,
+            () -> new VariancePyramid(TestImages.flat(4, 4, 0), 20, Utility.MAX_TREE_DEPTH + 1, Utility.MAX_TREE_DEPTH + 1));
+        assertThrows(IllegalArgumentException.class, () -> CompressionOptions.LEGACY.withMaxLoss(-1));
+        assertThrows(IllegalArgumentException.class, () -> CompressionOptions.LEGACY.withMaxLoss(Double.NaN));
+        assertThrows(IllegalArgumentException.class, () -> CompressionOptions.LEGACY.withIndexDepth(Utility.MAX_INDEX_DEPTH + 1));
+        assertThrows(IllegalArgumentException.class, () -> CompressionOptions.LEGACY.withCriterion(null));
+        assertThrows(IllegalArgumentException.class, () -> CompressionOptions.LEGACY.withTargetPsnr(0));
+        assertThrows(IllegalArgumentException.class, () -> CompressionOptions.LEGACY.withMaxBytes(0));
+    }
+}
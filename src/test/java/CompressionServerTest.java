@@ -0,0 +1,75 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CompressionServerTest {
+    private final Utility utility = new Utility();
+    private final HttpClient client = HttpClient.newHttpClient();
+    private CompressionServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new CompressionServer(utility, 0, 512L << 20);
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    private HttpResponse<byte[]> post(String path, byte[] body) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + path))
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static byte[] header(int width, int height) {
+        return ByteBuffer.allocate(21).putInt(0xC5201002).putInt(width).putInt(height).putInt(1).array();
+    }
+
+    @Test
+    void roundTrips() throws Exception {
+        PixelBuffer pixels = TestImages.photo(120, 80, 61);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new PixeltoImageConverter(pixels).toImage(), "png", png);
+
+        HttpResponse<byte[]> compressed = post("/compress", png.toByteArray());
+        assertEquals(200, compressed.statusCode());
+        assertArrayEquals(utility.compress(pixels), compressed.body());
+
+        HttpResponse<byte[]> decompressed = post("/decompress", compressed.body());
+        assertEquals(200, decompressed.statusCode());
+        PixelBuffer decoded = ImagetoPixelConverter.toPixelBuffer(ImageIO.read(new ByteArrayInputStream(decompressed.body())));
+        assertArrayEquals(utility.decompress(compressed.body()).getPixels(), decoded.getPixels());
+    }
+
+    @Test
+    void turnsAwayImagesTooLargeToDecode() throws Exception {
+        // 21 bytes that would otherwise decode to 576 MB
+        assertEquals(413, post("/decompress", header(12000, 12000)).statusCode());
+        // width * height overflows an int
+        assertEquals(413, post("/decompress", header(Integer.MAX_VALUE, Integer.MAX_VALUE)).statusCode());
+    }
+
+    @Test
+    void rejectsBadInput() throws Exception {
+        assertEquals(400, post("/decompress", header(-1, 10)).statusCode());
+        assertEquals(400, post("/decompress", new byte[] { 1, 2 }).statusCode());
+        assertEquals(400, post("/compress", new byte[] { 1, 2, 3, 4 }).statusCode());
+    }
+}
@@ -0,0 +1,42 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+class QualityMetricsTest {
+    @Test
+    void matchesTheSeparateCalculators() throws IOException {
+        Utility utility = new Utility();
+        PixelBuffer original = TestImages.photo(211, 157, 31);
+        PixelBuffer decompressed = utility.decompress(utility.compress(original));
+        BufferedImage a = new PixeltoImageConverter(original).toImage();
+        BufferedImage b = new PixeltoImageConverter(decompressed).toImage();
+
+        QualityMetrics images = QualityMetrics.compare(a, b);
+        QualityMetrics buffers = QualityMetrics.compare(original, decompressed);
+        for (QualityMetrics metrics : new QualityMetrics[] { images, buffers }) {
+            assertEquals(MAECalculator.calculateMAE(a, b), metrics.getMAE(), 1e-9);
+            assertEquals(MSECalculator.calculateMSE(a, b), metrics.getMSE(), 1e-9);
+            assertEquals(PSNRCalculator.calculatePSNR(a, b), metrics.getPSNR(), 1e-9);
+        }
+        assertEquals(images.getMaxError(), buffers.getMaxError());
+    }
+
+    @Test
+    void identicalImagesHaveNoError() {
+        PixelBuffer pixels = TestImages.noise(40, 30, 32);
+        QualityMetrics metrics = QualityMetrics.compare(pixels, pixels);
+        assertEquals(0, metrics.getMSE());
+        assertEquals(0, metrics.getMaxError());
+        assertEquals(Double.POSITIVE_INFINITY, metrics.getPSNR());
+    }
+
+    @Test
+    void rejectsImagesOfDifferentSizes() {
+        assertThrows(IllegalArgumentException.class,
+            () -> QualityMetrics.compare(TestImages.flat(4, 4, 0), TestImages.flat(4, 5, 0)));
+    }
+}
@@ -0,0 +1,50 @@
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+class RateControlTest {
+    private final Utility utility = new Utility();
+    // Blocks down to single pixels, so any PSNR target can be met
+    private final CompressionOptions options = new CompressionOptions(1, 64, 20, Utility.PASS_RATIO,
+        SplitCriterion.PASS_RATIO, 0);
+
+    private double psnr(PixelBuffer pixels, byte[] compressed) throws IOException {
+        return QualityMetrics.compare(pixels, utility.decompress(compressed)).getPSNR();
+    }
+
+    @Test
+    void meetsAPsnrTargetWithAsLittleAsNeeded() throws IOException {
+        PixelBuffer pixels = TestImages.photo(256, 192, 51);
+        byte[] loose = utility.compress(pixels, options.withTargetPsnr(28));
+        byte[] tight = utility.compress(pixels, options.withTargetPsnr(34));
+
+        assertTrue(psnr(pixels, loose) >= 28);
+        assertTrue(psnr(pixels, tight) >= 34);
+        assertTrue(loose.length < tight.length);
+    }
+
+    @Test
+    void fitsAByteBudget() throws IOException {
+        PixelBuffer pixels = TestImages.photo(256, 192, 52);
+        int full = utility.compress(pixels, options).length;
+        for (long budget : new long[] { full / 4, full / 2, full }) {
+            byte[] compressed = utility.compress(pixels, options.withMaxBytes(budget));
+            assertTrue(compressed.length <= budget, compressed.length + " > " + budget);
+            // Most of the budget is used
+            assertTrue(compressed.length > budget * 3 / 4, compressed.length + " of " + budget);
+        }
+    }
+
+    @Test
+    void unreachableTargetsGiveTheClosestTree() throws IOException {
+        PixelBuffer pixels = TestImages.noise(64, 64, 53);
+        byte[] best = utility.compress(pixels, options.withTargetPsnr(200));
+        utility.decompress(best);
+
+        // Too small for any tree: the smallest one, over the budget
+        byte[] smallest = utility.compress(pixels, options.withMaxBytes(1));
+        assertTrue(smallest.length > 1);
+    }
+}
@@ -0,0 +1,54 @@
+import java.util.Random;
+
+// Small deterministic images for the tests
+final class TestImages {
+    private TestImages() {
+    }
+
+    // Smooth shapes plus noise, so trees have both large and small leaves
+    static PixelBuffer photo(int width, int height, long seed) {
+        Random random = new Random(seed);
+        PixelBuffer pixels = new PixelBuffer(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = clamp((int) (128 + 100 * Math.sin(x / 17.0) * Math.cos(y / 23.0)) + random.nextInt(12) - 6);
+                int green = clamp((int) (128 + 90 * Math.sin((x + y) / 31.0)) + random.nextInt(12) - 6);
+                int blue = clamp(x * 255 / Math.max(1, width - 1));
+                pixels.set(x, y, (red << 16) | (green << 8) | blue);
+            }
+        }
+        return pixels;
+    }
+
+    static PixelBuffer noise(int width, int height, long seed) {
+        Random random = new Random(seed);
+        PixelBuffer pixels = new PixelBuffer(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels.set(x, y, random.nextInt(1 << 24));
+            }
+        }
+        return pixels;
+    }
+
+    static PixelBuffer flat(int width, int height, int rgb) {
+        PixelBuffer pixels = new PixelBuffer(width, height);
+        pixels.fill(0, 0, width, height, rgb);
+        return pixels;
+    }
+
+    // The pixels of source inside (x, y, width, height), every factor-th one
+    static PixelBuffer sample(PixelBuffer source, int x, int y, int width, int height, int factor) {
+        PixelBuffer sampled = new PixelBuffer((width + factor - 1) / factor, (height + factor - 1) / factor);
+        for (int row = 0; row < sampled.getHeight(); row++) {
+            for (int column = 0; column < sampled.getWidth(); column++) {
+                sampled.set(column, row, source.get(x + column * factor, y + row * factor));
+            }
+        }
+        return sampled;
+    }
+
+    private static int clamp(int value) {
+        return Math.min(255, Math.max(0, value));
+    }
+}
@@ -0,0 +1,70 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.jupiter.api.Test;
+
+class TiledCompressionTest {
+    private final Utility utility = new Utility();
+
+    private byte[] compressTiled(PixelBuffer pixels, int tileSize, int workers) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new PixeltoImageConverter(pixels).toImage(), "png", png);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(png.toByteArray()))) {
+            utility.compressTiled(input, out, tileSize, workers);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void eachTileDecodesAsIfCompressedAlone() throws IOException {
+        PixelBuffer pixels = TestImages.photo(300, 170, 11);
+        int tileSize = 64;
+        PixelBuffer decoded = utility.decompress(compressTiled(pixels, tileSize, 3));
+
+        for (int tileY = 0; tileY < pixels.getHeight(); tileY += tileSize) {
+            for (int tileX = 0; tileX < pixels.getWidth(); tileX += tileSize) {
+                int width = Math.min(tileSize, pixels.getWidth() - tileX);
+                int height = Math.min(tileSize, pixels.getHeight() - tileY);
+                PixelBuffer tile = TestImages.sample(pixels, tileX, tileY, width, height, 1);
+                assertArrayEquals(utility.decompress(utility.compress(tile)).getPixels(),
+                    TestImages.sample(decoded, tileX, tileY, width, height, 1).getPixels(), tileX + "," + tileY);
+            }
+        }
+    }
+
+    @Test
+    void workersDoNotChangeTheOutput() throws IOException {
+        PixelBuffer pixels = TestImages.photo(200, 130, 12);
+        byte[] single = compressTiled(pixels, 48, 1);
+        assertArrayEquals(single, compressTiled(pixels, 48, 4));
+    }
+
+    @Test
+    void regionsAndPreviewsMatchTheFullDecode() throws IOException {
+        byte[] data = compressTiled(TestImages.photo(250, 190, 13), 64, 2);
+        PixelBuffer full = utility.decompress(data);
+        int[][] regions = { { 0, 0, 250, 190 }, { 60, 60, 10, 10 }, { 100, 30, 140, 150 } };
+        for (int[] r : regions) {
+            for (int factor : new int[] { 1, 4 }) {
+                assertArrayEquals(TestImages.sample(full, r[0], r[1], r[2], r[3], factor).getPixels(),
+                    utility.decompress(ByteBuffer.wrap(data), r[0], r[1], r[2], r[3], factor).getPixels());
+            }
+        }
+    }
+
+    @Test
+    void rejectsBadArguments() {
+        PixelBuffer pixels = TestImages.flat(8, 8, 0);
+        assertThrows(IllegalArgumentException.class, () -> compressTiled(pixels, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> compressTiled(pixels, 8, 0));
+    }
+}
@@ -0,0 +1,44 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+// The bottom-up VariancePyramid must build the same VARIANCE tree as the
+// top-down walk over a summed-area table
+class VarianceTreeTest {
+    private final Utility utility = new Utility();
+
+    @Test
+    void pyramidMatchesTopDown() {
+        int[][] sizes = { { 1, 1 }, { 3, 5 }, { 37, 100 }, { 131, 97 }, { 256, 256 } };
+        int[][] depths = { { 6, 8 }, { 1, 1 }, { 1, 10 }, { 2, 5 } };
+        for (int[] size : sizes) {
+            for (PixelBuffer pixels : new PixelBuffer[] { TestImages.photo(size[0], size[1], 21),
+                    TestImages.noise(size[0], size[1], 22), TestImages.flat(size[0], size[1], 0x808080) }) {
+                SummedAreaTable summedAreaTable = new SummedAreaTable(pixels, true);
+                for (int[] depth : depths) {
+                    for (double maxLoss : new double[] { 0, 5, 20, 60 }) {
+                        String name = size[0] + "x" + size[1] + " depths " + depth[0] + "-" + depth[1] + " loss " + maxLoss;
+                        Utility.HuffmanCoding topDownColors = utility.new HuffmanCoding();
+                        Utility.HuffmanCoding pyramidColors = utility.new HuffmanCoding();
+                        Quadtree topDown = utility.buildQuadtreeWrapper(pixels, summedAreaTable, SplitCriterion.VARIANCE,
+                            maxLoss, depth[0], depth[1], topDownColors);
+                        Quadtree pyramid = utility.buildQuadtreeFromPyramid(
+                            new VariancePyramid(pixels, maxLoss, depth[0], depth[1]), pyramidColors);
+
+                        assertEquals(topDown.size(), pyramid.size(), name);
+                        int leaf = 0;
+                        for (int node = 0; node < topDown.size(); node++) {
+                            assertEquals(topDown.isLeaf(node), pyramid.isLeaf(node), name);
+                            if (topDown.isLeaf(node)) {
+                                assertEquals(topDown.getLeafColor(leaf), pyramid.getLeafColor(leaf), name);
+                                leaf++;
+                            }
+                        }
+                        assertArrayEquals(topDownColors.frequencies.sortedKeys(), pyramidColors.frequencies.sortedKeys(), name);
+                    }
+                }
+            }
+        }
+    }
+}